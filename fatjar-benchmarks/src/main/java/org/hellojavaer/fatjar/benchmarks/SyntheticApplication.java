@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Enumeration;
+
+/**
+ * The start class of the fat jars launched by org.hellojavaer.fatjar.core.FatJarStartupBenchmark.
+ *
+ * <p>
+ * Handling the first request is stood in for by loading the first classes of every nested jar, finding the
+ * resource which every nested jar has, the way a framework scans its configuration at boot, and reading a resource of
+ * every nested jar. The timestamps and the
+ * peak resident set size are printed after the lines of fatjar, prefixed by {@link #OUTPUT_PREFIX}. The class is
+ * loaded by the fat jar class loader, so it refers to nothing but the JDK.
+ */
+public class SyntheticApplication {
+
+    public static final String  OUTPUT_PREFIX   = "fatjar-startup: ";
+
+    // keep in sync with org.hellojavaer.fatjar.core.SyntheticFatJar
+    private static final String SHARED_RESOURCE = "META-INF/synthetic.properties";
+
+    /**
+     * @param args the number of nested jars and the number of classes to load from each of them
+     */
+    public static void main(String[] args) throws Exception {
+        long startClassMillis = System.currentTimeMillis();
+        int nestedJars = Integer.parseInt(args[0]);
+        int classesPerJar = Integer.parseInt(args[1]);
+        ClassLoader classLoader = SyntheticApplication.class.getClassLoader();
+        for (int jar = 0; jar < nestedJars; jar++) {
+            for (int i = 0; i < classesPerJar; i++) {
+                Class.forName("synthetic.p" + jar + ".C" + i, true, classLoader);
+            }
+        }
+        // boot.Main doesn't inject the jar url handler, so the urls of nested jars aren't opened
+        int resources = 0;
+        Enumeration<URL> urls = classLoader.getResources(SHARED_RESOURCE);
+        while (urls.hasMoreElements()) {
+            urls.nextElement();
+            resources++;
+        }
+        for (int jar = 0; jar < nestedJars; jar++) {
+            InputStream in = classLoader.getResourceAsStream("synthetic/p" + jar + "/R0.txt");
+            try {
+                while (in.read() >= 0) {
+                    // drain
+                }
+            } finally {
+                in.close();
+            }
+        }
+        long firstRequestMillis = System.currentTimeMillis();
+        System.out.println(OUTPUT_PREFIX + "start-class " + startClassMillis);
+        System.out.println(OUTPUT_PREFIX + "first-request " + firstRequestMillis);
+        System.out.println(OUTPUT_PREFIX + "resources " + resources);
+        System.out.println(OUTPUT_PREFIX + "peak-rss-kb " + getPeakRssKb());
+    }
+
+    /**
+     * @return VmHWM of /proc/self/status, or -1 if it isn't linux
+     */
+    private static long getPeakRssKb() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // not linux
+        }
+        return -1;
+    }
+}
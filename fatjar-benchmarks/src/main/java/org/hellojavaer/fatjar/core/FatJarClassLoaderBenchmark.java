@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+/**
+ * Lookups of {@link FatJarClassLoader} over a {@link SyntheticFatJar}.
+ *
+ * <p>
+ * The hits look up a sample of the classes and resources which are spread over all nested jars, every sampled class is
+ * defined in the setup, so <code>loadClass</code> hits measure the steady state. The misses look up absent names in
+ * the packages of the nested jars.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// delegating to a parent class loader needs java.lang to be opened since java 9, java 8 ignores the option
+@Fork(value = 1, jvmArgsAppend = { "-Dfatjar.log.level=warn", "-XX:+IgnoreUnrecognizedVMOptions",
+                                  "--add-opens=java.base/java.lang=ALL-UNNAMED" })
+public class FatJarClassLoaderBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    private int               nestedJars;
+
+    @Param({ "10", "100" })
+    private int               entriesPerJar;
+
+    @Param({ "true" })
+    private boolean           storeNestedJars;
+
+    private FatJarClassLoader classLoader;
+    private LookupNames       names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File file = SyntheticFatJar.generate(nestedJars, entriesPerJar, storeNestedJars);
+        classLoader = new FatJarClassLoader(new JarFile(file), file.toURI().toURL(),
+                                            ClassLoader.getSystemClassLoader().getParent(), null, true);
+        names = new LookupNames(nestedJars, entriesPerJar);
+        for (String className : names.getClassNames()) {
+            if (classLoader.loadClass(className) == null) {
+                throw new IllegalStateException(className + " isn't found");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        classLoader.close();
+    }
+
+    @Benchmark
+    public Class<?> loadClassHit(LookupNames.Cursor cursor) throws ClassNotFoundException {
+        return classLoader.loadClass(names.getClassNames()[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Class<?> loadClassHitThreads4(LookupNames.Cursor cursor) throws ClassNotFoundException {
+        return classLoader.loadClass(names.getClassNames()[cursor.next()]);
+    }
+
+    @Benchmark
+    public Class<?> loadClassMiss(LookupNames.Cursor cursor) throws ClassNotFoundException {
+        return classLoader.loadClass(names.getMissingClassNames()[cursor.next()]);
+    }
+
+    @Benchmark
+    public URL getResourceHit(LookupNames.Cursor cursor) {
+        return classLoader.getResource(names.getResourceNames()[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public URL getResourceHitThreads4(LookupNames.Cursor cursor) {
+        return classLoader.getResource(names.getResourceNames()[cursor.next()]);
+    }
+
+    @Benchmark
+    public URL getResourceMiss(LookupNames.Cursor cursor) {
+        return classLoader.getResource(names.getMissingResourceNames()[cursor.next()]);
+    }
+
+    /**
+     * every nested jar has the resource
+     */
+    @Benchmark
+    public int getResourcesShared() throws IOException {
+        int count = 0;
+        Enumeration<URL> urls = classLoader.getResources(SyntheticFatJar.SHARED_RESOURCE);
+        while (urls.hasMoreElements()) {
+            urls.nextElement();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * lists the classes of all nested jars, the way a component scan starts
+     */
+    @Benchmark
+    public int scanEntries() throws IOException {
+        final int[] count = new int[1];
+        classLoader.scanEntries("synthetic/", new FatJarEntryVisitor() {
+
+            @Override
+            public boolean visit(URL jarURL, String name, long size) {
+                if (name.endsWith(".class")) {
+                    count[0]++;
+                }
+                return true;
+            }
+        });
+        return count[0];
+    }
+
+    @Benchmark
+    public int getResourceAsStreamHit(LookupNames.Cursor cursor) throws IOException {
+        InputStream inputStream = classLoader.getResourceAsStream(names.getResourceNames()[cursor.next()]);
+        try {
+            return LookupNames.drain(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int getResourceAsStreamHitThreads4(LookupNames.Cursor cursor) throws IOException {
+        return getResourceAsStreamHit(cursor);
+    }
+
+    @Benchmark
+    public InputStream getResourceAsStreamMiss(LookupNames.Cursor cursor) {
+        return classLoader.getResourceAsStream(names.getMissingResourceNames()[cursor.next()]);
+    }
+}
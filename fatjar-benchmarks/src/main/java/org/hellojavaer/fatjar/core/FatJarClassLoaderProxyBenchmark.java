@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FatJarClassLoaderProxy#loadClass(String)} over the directory of a {@link SyntheticFatJar}, which routes the
+ * direct classes of the fat jar to its {@link FatJarClassLoader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// delegating to a parent class loader needs java.lang to be opened since java 9, java 8 ignores the option
+@Fork(value = 1, jvmArgsAppend = { "-Dfatjar.log.level=warn", "-XX:+IgnoreUnrecognizedVMOptions",
+                                  "--add-opens=java.base/java.lang=ALL-UNNAMED" })
+public class FatJarClassLoaderProxyBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    private int                    nestedJars;
+
+    @Param({ "100" })
+    private int                    entriesPerJar;
+
+    @Param({ "true" })
+    private boolean                storeNestedJars;
+
+    private FatJarClassLoaderProxy classLoader;
+    private String[]               classNames;
+    private String[]               missingClassNames;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File file = SyntheticFatJar.generate(nestedJars, entriesPerJar, storeNestedJars);
+        classLoader = new FatJarClassLoaderProxy(new URL[] { file.getParentFile().toURI().toURL() },
+                                                 ClassLoader.getSystemClassLoader().getParent(), null, true);
+        classNames = new String[LookupNames.SAMPLE_SIZE];
+        missingClassNames = new String[LookupNames.SAMPLE_SIZE];
+        for (int i = 0; i < LookupNames.SAMPLE_SIZE; i++) {
+            classNames[i] = SyntheticFatJar.directClassName(i % entriesPerJar);
+            missingClassNames[i] = "synthetic.app.Missing" + i;
+        }
+        for (String className : classNames) {
+            if (classLoader.loadClass(className) == null) {
+                throw new IllegalStateException(className + " isn't found");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        classLoader.close();
+    }
+
+    @Benchmark
+    public Class<?> loadClassHit(LookupNames.Cursor cursor) throws ClassNotFoundException {
+        return classLoader.loadClass(classNames[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Class<?> loadClassHitThreads4(LookupNames.Cursor cursor) throws ClassNotFoundException {
+        return classLoader.loadClass(classNames[cursor.next()]);
+    }
+
+    @Benchmark
+    public Class<?> loadClassMiss(LookupNames.Cursor cursor) throws ClassNotFoundException {
+        return classLoader.loadClass(missingClassNames[cursor.next()]);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One delegation hop from a {@link FatJarClassLoader} to a parent or child class loader, through the cached method
+ * handles of {@link FatJarClassLoader#invokeFindClass(ClassLoader, String)} and the like, against
+ * {@link Method#invoke(Object, Object...)} which was used before. The target class loader answers from a field so that
+ * the hop itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dfatjar.log.level=warn" })
+public class FatJarDelegationBenchmark {
+
+    private TargetClassLoader classLoader;
+    private Method            findClassMethod;
+    private Method            findResourceMethod;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        classLoader = new TargetClassLoader();
+        findClassMethod = TargetClassLoader.class.getDeclaredMethod("findClass", String.class);
+        findClassMethod.setAccessible(true);
+        findResourceMethod = TargetClassLoader.class.getDeclaredMethod("findResource", String.class);
+        findResourceMethod.setAccessible(true);
+    }
+
+    @Benchmark
+    public Class<?> findClassMethodHandle() throws ClassNotFoundException {
+        return FatJarClassLoader.invokeFindClass(classLoader, "synthetic.app.Target");
+    }
+
+    @Benchmark
+    public Class<?> findClassReflection() throws Exception {
+        return (Class<?>) findClassMethod.invoke(classLoader, "synthetic.app.Target");
+    }
+
+    @Benchmark
+    public URL findResourceMethodHandle() {
+        return FatJarClassLoader.invokeFindResource(classLoader, "synthetic/app/target.txt");
+    }
+
+    @Benchmark
+    public URL findResourceReflection() throws Exception {
+        return (URL) findResourceMethod.invoke(classLoader, "synthetic/app/target.txt");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Class<?> findClassMethodHandleThreads4() throws ClassNotFoundException {
+        return FatJarClassLoader.invokeFindClass(classLoader, "synthetic.app.Target");
+    }
+
+    static class TargetClassLoader extends ClassLoader {
+
+        private final URL url;
+
+        TargetClassLoader() throws MalformedURLException {
+            super(null);
+            this.url = new URL("file:/synthetic/app/target.txt");
+        }
+
+        @Override
+        protected Class<?> findClass(String name) {
+            return TargetClassLoader.class;
+        }
+
+        @Override
+        protected URL findResource(String name) {
+            return url;
+        }
+    }
+}
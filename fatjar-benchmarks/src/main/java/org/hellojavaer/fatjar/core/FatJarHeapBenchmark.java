@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarFile;
+
+/**
+ * Loads every class of a synthetic fat jar by a {@link FatJarClassLoader} and reports the heap which is retained while
+ * the class loader is still reachable.
+ *
+ * <p>
+ * The heap is measured after full collections, before the class loader is created and after all the classes have been
+ * loaded. The size of the class files which have been read is reported next to it, which is the heap the cached
+ * entries held on top of that when they kept the bytes of the classes they defined. Run it with a fixed heap, e.g.
+ * <code>-Xms1g -Xmx1g</code>, and without a concurrent collector so that <code>System.gc()</code> is a full one.
+ *
+ * <pre>
+ * java -cp benchmarks.jar org.hellojavaer.fatjar.core.FatJarHeapBenchmark [options]
+ *   -n &lt;nestedJars&gt;     default 200
+ *   -e &lt;entriesPerJar&gt;  default 100
+ *   -s &lt;classSize&gt;      the size of the class files in bytes, default 2048
+ *   -l &lt;layouts&gt;        stored, deflated or both, default both
+ *   -d &lt;directory&gt;      where the fat jars are, default java.io.tmpdir/fatjar-heap
+ * </pre>
+ */
+public class FatJarHeapBenchmark {
+
+    private static final int GC_ROUNDS     = 5;
+
+    private int              nestedJars    = 200;
+    private int              entriesPerJar = 100;
+    private int              classSize     = 2048;
+    private List<Boolean>    layouts       = Arrays.asList(true, false);
+    private File             directory     = new File(System.getProperty("java.io.tmpdir"), "fatjar-heap");
+
+    public static void main(String[] args) throws Exception {
+        FatJarHeapBenchmark benchmark = new FatJarHeapBenchmark();
+        benchmark.parse(args);
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("the value of " + arg + " is missing");
+            }
+            String value = args[++i];
+            if ("-n".equals(arg)) {
+                nestedJars = Integer.parseInt(value);
+            } else if ("-e".equals(arg)) {
+                entriesPerJar = Integer.parseInt(value);
+            } else if ("-s".equals(arg)) {
+                classSize = Integer.parseInt(value);
+            } else if ("-l".equals(arg)) {
+                if ("stored".equals(value)) {
+                    layouts = Collections.singletonList(true);
+                } else if ("deflated".equals(value)) {
+                    layouts = Collections.singletonList(false);
+                } else if (!"both".equals(value)) {
+                    throw new IllegalArgumentException("unknown layout " + value);
+                }
+            } else if ("-d".equals(arg)) {
+                directory = new File(value);
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+    }
+
+    private void run() throws IOException, ClassNotFoundException {
+        System.out.println(String.format("%-18s %8s %14s %12s %14s", "layout", "classes", "classBytes(KB)",
+                                         "retained(KB)", "perClass(B)"));
+        for (boolean stored : layouts) {
+            String layout = SyntheticFatJar.layoutName(stored, true);
+            File layoutDirectory = new File(directory, nestedJars + "x" + entriesPerJar + "x" + classSize + "-"
+                                                       + layout);
+            File file = new SyntheticFatJar(nestedJars, entriesPerJar, stored, true, null, classSize)
+                    .writeTo(new File(layoutDirectory, "synthetic.jar"));
+            long[] result = measure(file);
+            System.out.println(String.format("%-18s %8d %14d %12d %14d", layout, result[0], result[1] / 1024,
+                                             result[2] / 1024, result[2] / result[0]));
+        }
+    }
+
+    /**
+     * @return the number of classes loaded, the size of their class files and the heap retained, in bytes
+     */
+    private long[] measure(File file) throws IOException, ClassNotFoundException {
+        long before = usedHeap();
+        JarFile jarFile = new JarFile(file);
+        FatJarClassLoader classLoader = new FatJarClassLoader(jarFile, file.toURI().toURL(),
+                                                              FatJarHeapBenchmark.class.getClassLoader(), null,
+                                                              true);
+        long classes = 0;
+        long classBytes = 0;
+        try {
+            for (int entry = 0; entry < entriesPerJar; entry++) {
+                classBytes += load(classLoader, SyntheticFatJar.directClassName(entry));
+                classes++;
+            }
+            for (int jar = 0; jar < nestedJars; jar++) {
+                for (int entry = 0; entry < entriesPerJar; entry++) {
+                    classBytes += load(classLoader, SyntheticFatJar.className(jar, entry));
+                    classes++;
+                }
+            }
+            long retained = usedHeap() - before;
+            return new long[] { classes, classBytes, retained };
+        } finally {
+            classLoader.close();
+            jarFile.close();
+        }
+    }
+
+    /**
+     * @return the size of the class file
+     */
+    private long load(ClassLoader classLoader, String className) throws IOException, ClassNotFoundException {
+        Class<?> clazz = classLoader.loadClass(className);
+        if (clazz.getClassLoader() != classLoader) {
+            throw new IllegalStateException(className + " is loaded by " + clazz.getClassLoader());
+        }
+        return SyntheticFatJar.emptyClass(className, classSize).length;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < GC_ROUNDS; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import org.hellojavaer.fatjar.benchmarks.SyntheticApplication;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Launches synthetic fat jars by <code>java -jar</code> in fresh JVMs and reports how long it takes them to boot.
+ *
+ * <p>
+ * Each launch reports the milliseconds from starting the process to entering the start class and to having handled the
+ * first request (see {@link SyntheticApplication}), the size of the files which the launch wrote to the temporary
+ * directory of fatjar and the peak resident set size, as well as how many nested jars the shared resource was found in.
+ * Cold runs delete the <code>.fatjar</code> directory before the launch, warm runs keep the extracted nested jars and,
+ * with <code>-J-Dfatjar.preload=...</code>, the preloading profile which the previous launch left behind. The page
+ * cache of the OS isn't dropped, so cold means a cold fatjar cache, not a cold disk.
+ *
+ * <p>
+ * An indexed fat jar holds the entry index which FatJarMojo writes, so its nested jars are opened on the first lookup
+ * routed to them. An unindexed one makes the class loader open every nested jar at boot to build the index.
+ *
+ * <pre>
+ * java -cp benchmarks.jar org.hellojavaer.fatjar.core.FatJarStartupBenchmark [options]
+ *   -n &lt;nestedJars&gt;     default 100
+ *   -e &lt;entriesPerJar&gt;  default 100
+ *   -c &lt;classesPerJar&gt;  classes loaded from each nested jar by the first request, default 10
+ *   -r &lt;runs&gt;           cold and warm launches of each layout, default 5
+ *   -l &lt;layouts&gt;        stored, deflated or both, default both
+ *   -i &lt;index&gt;          indexed, unindexed or both, default both
+ *   -d &lt;directory&gt;      where the fat jars and temporary directories are, default java.io.tmpdir/fatjar-startup
+ *   -J&lt;option&gt;          passed to the launched JVMs
+ * </pre>
+ */
+public class FatJarStartupBenchmark {
+
+    private static final String   FATJAR_TEMP_DIR_KEY  = "fatjar.temp.dir";
+    private static final String   FATJAR_TEMP_DIR_NAME = ".fatjar";
+    // delegating to a parent class loader needs java.lang to be opened since java 9, java 8 ignores the option
+    private static final String[] DEFAULT_JVM_OPTIONS  = { "-XX:+IgnoreUnrecognizedVMOptions",
+            "--add-opens=java.base/java.lang=ALL-UNNAMED" };
+
+    private int                   nestedJars           = 100;
+    private int                   entriesPerJar        = 100;
+    private int                   classesPerJar        = 10;
+    private int                   runs                 = 5;
+    private List<Boolean>         layouts              = Arrays.asList(true, false);
+    private List<Boolean>         indexes              = Arrays.asList(true, false);
+    private File                  directory            = new File(System.getProperty("java.io.tmpdir"),
+                                                                  "fatjar-startup");
+    private List<String>          jvmOptions           = new ArrayList<String>(Arrays.asList(DEFAULT_JVM_OPTIONS));
+
+    public static void main(String[] args) throws Exception {
+        FatJarStartupBenchmark benchmark = new FatJarStartupBenchmark();
+        benchmark.parse(args);
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-J")) {
+                jvmOptions.add(arg.substring(2));
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("the value of " + arg + " is missing");
+            }
+            String value = args[++i];
+            if ("-n".equals(arg)) {
+                nestedJars = Integer.parseInt(value);
+            } else if ("-e".equals(arg)) {
+                entriesPerJar = Integer.parseInt(value);
+            } else if ("-c".equals(arg)) {
+                classesPerJar = Integer.parseInt(value);
+            } else if ("-r".equals(arg)) {
+                runs = Integer.parseInt(value);
+            } else if ("-l".equals(arg)) {
+                if ("stored".equals(value)) {
+                    layouts = Collections.singletonList(true);
+                } else if ("deflated".equals(value)) {
+                    layouts = Collections.singletonList(false);
+                } else if (!"both".equals(value)) {
+                    throw new IllegalArgumentException("unknown layout " + value);
+                }
+            } else if ("-i".equals(arg)) {
+                if ("indexed".equals(value)) {
+                    indexes = Collections.singletonList(true);
+                } else if ("unindexed".equals(value)) {
+                    indexes = Collections.singletonList(false);
+                } else if (!"both".equals(value)) {
+                    throw new IllegalArgumentException("unknown index " + value);
+                }
+            } else if ("-d".equals(arg)) {
+                directory = new File(value);
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (classesPerJar > entriesPerJar) {
+            throw new IllegalArgumentException("classesPerJar " + classesPerJar + " is greater than entriesPerJar "
+                                               + entriesPerJar);
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        System.out.println(String.format("%-18s %-5s %4s %14s %16s %14s %12s %7s", "layout", "mode", "run",
+                                         "startClass(ms)", "firstRequest(ms)", "tempWritten(B)", "peakRss(KB)",
+                                         "shared"));
+        List<String> summary = new ArrayList<String>();
+        for (boolean stored : layouts) {
+            for (boolean indexed : indexes) {
+                String layout = SyntheticFatJar.layoutName(stored, indexed);
+                File layoutDirectory = new File(directory, nestedJars + "x" + entriesPerJar + "-" + layout);
+                File fatJar = new SyntheticFatJar(nestedJars, entriesPerJar, stored, indexed,
+                                                  SyntheticApplication.class).writeTo(new File(layoutDirectory,
+                                                                                               "synthetic.jar"));
+                File tempDir = new File(layoutDirectory, "temp");
+                for (String mode : new String[] { "cold", "warm" }) {
+                    long[][] results = new long[runs][];
+                    for (int run = 0; run < runs; run++) {
+                        if ("cold".equals(mode)) {
+                            delete(new File(tempDir, FATJAR_TEMP_DIR_NAME));
+                        }
+                        results[run] = launch(fatJar, tempDir);
+                        System.out.println(String.format("%-18s %-5s %4d %14d %16d %14d %12d %7d", layout, mode,
+                                                         run, results[run][0], results[run][1], results[run][2],
+                                                         results[run][3], results[run][4]));
+                    }
+                    summary.add(String.format("%-18s %-5s %4s %14d %16d %14d %12d %7d", layout, mode, "p50",
+                                              median(results, 0), median(results, 1), median(results, 2),
+                                              median(results, 3), median(results, 4)));
+                }
+            }
+        }
+        for (String line : summary) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * @return the millis to the start class, the millis to the first request, the bytes written to the temporary
+     *         directory, the peak resident set size in KB and the number of the shared resources found
+     */
+    private long[] launch(File fatJar, File tempDir) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-D" + FATJAR_TEMP_DIR_KEY + "=" + tempDir.getAbsolutePath());
+        command.addAll(jvmOptions);
+        command.add("-jar");
+        command.add(fatJar.getAbsolutePath());
+        command.add(String.valueOf(nestedJars));
+        command.add(String.valueOf(classesPerJar));
+        Map<String, Long> tempFiles = new HashMap<String, Long>();
+        listFiles(tempDir, tempFiles);
+        List<String> output = new ArrayList<String>();
+        long startMillis = System.currentTimeMillis();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                                                                         StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        int exitCode = process.waitFor();
+        long[] result = { -1, -1, sizeWritten(tempDir, tempFiles), -1, -1 };
+        for (String line : output) {
+            if (!line.startsWith(SyntheticApplication.OUTPUT_PREFIX)) {
+                continue;
+            }
+            String[] pair = line.substring(SyntheticApplication.OUTPUT_PREFIX.length()).split(" ");
+            long value = Long.parseLong(pair[1]);
+            if ("start-class".equals(pair[0])) {
+                result[0] = value - startMillis;
+            } else if ("first-request".equals(pair[0])) {
+                result[1] = value - startMillis;
+            } else if ("resources".equals(pair[0])) {
+                result[4] = value;
+            } else if ("peak-rss-kb".equals(pair[0])) {
+                result[3] = value;
+            }
+        }
+        if (exitCode != 0 || result[1] < 0) {
+            for (String line : output) {
+                System.err.println(line);
+            }
+            throw new IllegalStateException(command + " exited with " + exitCode);
+        }
+        return result;
+    }
+
+    private static long median(long[][] results, int column) {
+        long[] values = new long[results.length];
+        for (int i = 0; i < results.length; i++) {
+            values[i] = results[i][column];
+        }
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+
+    private static void listFiles(File file, Map<String, Long> files) {
+        if (file.isFile()) {
+            files.put(file.getPath(), file.lastModified());
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                listFiles(child, files);
+            }
+        }
+    }
+
+    /**
+     * @param before the files and their modification time before the launch
+     * @return the size of the files which are created or modified since
+     */
+    private static long sizeWritten(File file, Map<String, Long> before) {
+        Map<String, Long> after = new HashMap<String, Long>();
+        listFiles(file, after);
+        long size = 0;
+        for (Map.Entry<String, Long> entry : after.entrySet()) {
+            if (!entry.getValue().equals(before.get(entry.getKey()))) {
+                size += new File(entry.getKey()).length();
+            }
+        }
+        return size;
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("can't delete " + file);
+        }
+    }
+}
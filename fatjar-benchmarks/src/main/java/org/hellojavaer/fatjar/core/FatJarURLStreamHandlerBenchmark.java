@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens and reads <code>jar:file:fat.jar!/lib/nested.jar!/entry</code> URLs by {@link FatJarURLStreamHandler}, as
+ * the URLs which {@link FatJarClassLoader} returns are read once the handler is injected.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// delegating to a parent class loader needs java.lang to be opened since java 9, java 8 ignores the option
+@Fork(value = 1, jvmArgsAppend = { "-Dfatjar.log.level=warn", "-XX:+IgnoreUnrecognizedVMOptions",
+                                  "--add-opens=java.base/java.lang=ALL-UNNAMED" })
+public class FatJarURLStreamHandlerBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    private int     nestedJars;
+
+    @Param({ "100" })
+    private int     entriesPerJar;
+
+    @Param({ "true" })
+    private boolean storeNestedJars;
+
+    private URL[]   urls;
+    private URL[]   missingUrls;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File file = SyntheticFatJar.generate(nestedJars, entriesPerJar, storeNestedJars);
+        FatJarURLStreamHandler handler = new FatJarURLStreamHandler();
+        LookupNames names = new LookupNames(nestedJars, entriesPerJar);
+        urls = new URL[LookupNames.SAMPLE_SIZE];
+        missingUrls = new URL[LookupNames.SAMPLE_SIZE];
+        for (int i = 0; i < LookupNames.SAMPLE_SIZE; i++) {
+            String nestedJar = file.toURI().toURL() + "!/lib/synthetic-" + names.getJar(i) + ".jar!/";
+            urls[i] = new URL("jar", "", -1, nestedJar + names.getResourceNames()[i], handler);
+            missingUrls[i] = new URL("jar", "", -1, nestedJar + names.getMissingResourceNames()[i], handler);
+        }
+        // the nested jars are extracted by the first connections
+        for (URL url : urls) {
+            InputStream inputStream = url.openStream();
+            inputStream.close();
+        }
+    }
+
+    @Benchmark
+    public int openConnectionHit(LookupNames.Cursor cursor) throws IOException {
+        URLConnection connection = urls[cursor.next()].openConnection();
+        InputStream inputStream = connection.getInputStream();
+        try {
+            return LookupNames.drain(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int openConnectionHitThreads4(LookupNames.Cursor cursor) throws IOException {
+        return openConnectionHit(cursor);
+    }
+
+    @Benchmark
+    public boolean openConnectionMiss(LookupNames.Cursor cursor) {
+        try {
+            missingUrls[cursor.next()].openConnection().getInputStream().close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
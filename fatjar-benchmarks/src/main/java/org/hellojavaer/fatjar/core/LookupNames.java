@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * A fixed sample of the present and absent names of a {@link SyntheticFatJar}, the same for every run.
+ */
+public class LookupNames {
+
+    static final int       SAMPLE_SIZE          = 1024;
+
+    private final int[]    jars                 = new int[SAMPLE_SIZE];
+    private final int[]    entries              = new int[SAMPLE_SIZE];
+    private final String[] classNames           = new String[SAMPLE_SIZE];
+    private final String[] resourceNames        = new String[SAMPLE_SIZE];
+    private final String[] missingClassNames    = new String[SAMPLE_SIZE];
+    private final String[] missingResourceNames = new String[SAMPLE_SIZE];
+
+    public LookupNames(int nestedJars, int entriesPerJar) {
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            jars[i] = random.nextInt(nestedJars);
+            entries[i] = random.nextInt(entriesPerJar);
+            classNames[i] = SyntheticFatJar.className(jars[i], entries[i]);
+            resourceNames[i] = SyntheticFatJar.resourceName(jars[i], entries[i]);
+            missingClassNames[i] = "synthetic.p" + jars[i] + ".Missing" + i;
+            missingResourceNames[i] = "synthetic/p" + jars[i] + "/Missing" + i + ".txt";
+        }
+    }
+
+    public int getJar(int i) {
+        return jars[i];
+    }
+
+    public int getEntry(int i) {
+        return entries[i];
+    }
+
+    public String[] getClassNames() {
+        return classNames;
+    }
+
+    public String[] getResourceNames() {
+        return resourceNames;
+    }
+
+    public String[] getMissingClassNames() {
+        return missingClassNames;
+    }
+
+    public String[] getMissingResourceNames() {
+        return missingResourceNames;
+    }
+
+    static int drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[256];
+        int count = 0;
+        int n;
+        while ((n = inputStream.read(buffer)) > 0) {
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * Walks the sample from a different start in each thread, so the threads don't look up the same name together.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next = (int) (Thread.currentThread().getId() * 131);
+
+        public int next() {
+            return next++ & (SAMPLE_SIZE - 1);
+        }
+    }
+}
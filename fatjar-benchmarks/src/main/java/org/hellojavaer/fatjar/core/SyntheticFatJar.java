@@ -0,0 +1,389 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import org.hellojavaer.fatjar.core.boot.Main;
+import org.hellojavaer.fatjar.maven.plugin.FatJarIndexBuilder;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Generates a fat jar in the layout of FatJarMojo, whose nested jars hold empty classes and small resources.
+ *
+ * <p>
+ * Nested jar <code>j</code> is <code>lib/synthetic-j.jar</code> and holds the classes <code>synthetic.pj.Ci</code>,
+ * the resources <code>synthetic/pj/Ri.txt</code> and a <code>META-INF/synthetic.properties</code> which every nested
+ * jar has. The fat jar itself holds the direct classes <code>synthetic.app.Ci</code>. An indexed fat jar holds the
+ * <code>META-INF/fatjar.idx</code> which FatJarMojo writes, so its nested jars are opened on the first lookup routed to
+ * them; otherwise the class loader opens all of them and builds the index itself. The classes can be padded to a given
+ * size by an attribute which the JVM ignores.
+ *
+ * <p>
+ * If a start class is given, the fat jar can be launched by <code>java -jar</code> like one built by FatJarMojo, its
+ * Main-Class is {@link Main} and the classes of fatjar-core and the start class are copied into the fat jar.
+ */
+public class SyntheticFatJar {
+
+    public static final String  SHARED_RESOURCE              = "META-INF/synthetic.properties";
+
+    private static final String FAT_JAR_BUILDING_TOOL_ID_KEY = "Fat-Jar-Building-Tool-Id";
+    private static final String FAT_JAR_BUILDING_TOOL_ID     = "org.hellojavaer.fatjar-fatjar-maven-plugin";
+    private static final String START_CLASS_KEY              = "Start-Class";
+    private static final String LIB_DIRECTORY                = "lib/";
+    private static final String CORE_PACKAGE                 = "org/hellojavaer/fatjar/core/";
+    private static final String JMH_GENERATED_PACKAGE        = CORE_PACKAGE + "jmh_generated/";
+    private static final String BENCHMARKS_DIR_KEY           = "fatjar.benchmarks.dir";
+
+    private final int           nestedJars;
+    private final int           entriesPerJar;
+    private final boolean       storeNestedJars;
+    private final boolean       indexed;
+    // null if the fat jar isn't launched
+    private final Class<?>      startClass;
+    // the size of the class files, 0 for empty ones
+    private final int           classSize;
+
+    public SyntheticFatJar(int nestedJars, int entriesPerJar, boolean storeNestedJars, boolean indexed) {
+        this(nestedJars, entriesPerJar, storeNestedJars, indexed, null);
+    }
+
+    public SyntheticFatJar(int nestedJars, int entriesPerJar, boolean storeNestedJars, boolean indexed,
+                           Class<?> startClass) {
+        this(nestedJars, entriesPerJar, storeNestedJars, indexed, startClass, 0);
+    }
+
+    public SyntheticFatJar(int nestedJars, int entriesPerJar, boolean storeNestedJars, boolean indexed,
+                           Class<?> startClass, int classSize) {
+        this.nestedJars = nestedJars;
+        this.entriesPerJar = entriesPerJar;
+        this.storeNestedJars = storeNestedJars;
+        this.indexed = indexed;
+        this.startClass = startClass;
+        this.classSize = classSize;
+    }
+
+    /**
+     * Generates an indexed fat jar, like the ones FatJarMojo builds, see {@link #generate(int, int, boolean, boolean)}.
+     */
+    public static File generate(int nestedJars, int entriesPerJar, boolean storeNestedJars) throws IOException {
+        return generate(nestedJars, entriesPerJar, storeNestedJars, true);
+    }
+
+    /**
+     * Generates the fat jar into its own directory under <code>-Dfatjar.benchmarks.dir</code>, once for all runs.
+     */
+    public static File generate(int nestedJars, int entriesPerJar, boolean storeNestedJars, boolean indexed)
+            throws IOException {
+        String baseDirectory = System.getProperty(BENCHMARKS_DIR_KEY, System.getProperty("java.io.tmpdir")
+                                                                      + "/fatjar-benchmarks");
+        File directory = new File(baseDirectory, nestedJars + "x" + entriesPerJar + "-"
+                                                 + layoutName(storeNestedJars, indexed));
+        SyntheticFatJar fatJar = new SyntheticFatJar(nestedJars, entriesPerJar, storeNestedJars, indexed);
+        return fatJar.writeTo(new File(directory, "synthetic.jar"));
+    }
+
+    /**
+     * e.g. stored-indexed
+     */
+    public static String layoutName(boolean storeNestedJars, boolean indexed) {
+        return (storeNestedJars ? "stored" : "deflated") + (indexed ? "-indexed" : "-unindexed");
+    }
+
+    public static String directClassName(int entry) {
+        return "synthetic.app.C" + entry;
+    }
+
+    public static String className(int jar, int entry) {
+        return "synthetic.p" + jar + ".C" + entry;
+    }
+
+    public static String resourceName(int jar, int entry) {
+        return "synthetic/p" + jar + "/R" + entry + ".txt";
+    }
+
+    public int getNestedJars() {
+        return nestedJars;
+    }
+
+    public int getEntriesPerJar() {
+        return entriesPerJar;
+    }
+
+    /**
+     * Writes the fat jar into <code>file</code> unless it exists already.
+     */
+    public File writeTo(File file) throws IOException {
+        if (file.exists()) {
+            return file;
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("can't create " + parent);
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue(FAT_JAR_BUILDING_TOOL_ID_KEY, FAT_JAR_BUILDING_TOOL_ID);
+        if (startClass != null) {
+            attributes.put(Attributes.Name.MAIN_CLASS, Main.class.getName());
+            attributes.putValue(START_CLASS_KEY, startClass.getName());
+        }
+        OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(tempFile));
+        CountingOutputStream countingOut = new CountingOutputStream(fileOut);
+        JarOutputStream out = new JarOutputStream(countingOut, manifest);
+        try {
+            // the names of the entries of the fat jar itself
+            List<String> names = new ArrayList<String>();
+            names.add(JarFile.MANIFEST_NAME);
+            if (startClass != null) {
+                copyClasses(out, Main.class, CORE_PACKAGE, names);
+                copyClasses(out, startClass, startClass.getName().replace('.', '/'), names);
+            }
+            for (int i = 0; i < entriesPerJar; i++) {
+                String name = directClassName(i).replace('.', '/') + ".class";
+                writeEntry(out, name, emptyClass(directClassName(i), classSize));
+                names.add(name);
+            }
+            FatJarIndexBuilder indexBuilder = new FatJarIndexBuilder();
+            for (int jar = 0; jar < nestedJars; jar++) {
+                byte[] nestedJar = nestedJar(jar);
+                CRC32 crc = new CRC32();
+                crc.update(nestedJar);
+                JarEntry jarEntry = new JarEntry(LIB_DIRECTORY + "synthetic-" + jar + ".jar");
+                if (storeNestedJars) {
+                    jarEntry.setMethod(ZipEntry.STORED);
+                    jarEntry.setSize(nestedJar.length);
+                    jarEntry.setCompressedSize(nestedJar.length);
+                    jarEntry.setCrc(crc.getValue());
+                }
+                long offset = countingOut.count;
+                out.putNextEntry(jarEntry);
+                out.write(nestedJar);
+                out.closeEntry();
+                names.add(jarEntry.getName());
+                int ordinal = indexBuilder.addJar(jarEntry.getName(), false, offset, nestedJar.length,
+                                                  crc.getValue());
+                for (String nestedEntryName : entryNames(nestedJar)) {
+                    indexBuilder.addEntry(nestedEntryName, ordinal);
+                }
+            }
+            if (indexed) {
+                names.add(FatJarIndexBuilder.INDEX_ENTRY_NAME);
+                for (String name : names) {
+                    indexBuilder.addEntry(name, 0);
+                }
+                out.putNextEntry(new JarEntry(FatJarIndexBuilder.INDEX_ENTRY_NAME));
+                indexBuilder.write(out);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("can't rename " + tempFile + " to " + file);
+        }
+        return file;
+    }
+
+    private byte[] nestedJar(int jar) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        JarOutputStream out = new JarOutputStream(bytes, manifest);
+        try {
+            writeEntry(out, SHARED_RESOURCE, ("jar=" + jar + "\n").getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < entriesPerJar; i++) {
+                writeEntry(out, className(jar, i).replace('.', '/') + ".class",
+                           emptyClass(className(jar, i), classSize));
+                writeEntry(out, resourceName(jar, i), ("resource " + i + " of " + jar + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<String> entryNames(byte[] jar) throws IOException {
+        List<String> names = new ArrayList<String>();
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(jar));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                names.add(entry.getName());
+            }
+        } finally {
+            in.close();
+        }
+        return names;
+    }
+
+    /**
+     * Copies the entries whose names start with <code>prefix</code> from the jar or directory which
+     * <code>anchor</code> is loaded from. The classes generated by JMH are skipped, the other classes of this module
+     * which share the package of fatjar-core are copied but never loaded.
+     */
+    private static void copyClasses(JarOutputStream out, Class<?> anchor, String prefix, List<String> names)
+            throws IOException {
+        File location;
+        try {
+            location = new File(anchor.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (location.isDirectory()) {
+            copyDirectory(out, location, "", prefix, names);
+            return;
+        }
+        JarFile jarFile = new JarFile(location);
+        try {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!entry.isDirectory() && isCopied(name, prefix)) {
+                    InputStream in = jarFile.getInputStream(entry);
+                    try {
+                        writeEntry(out, name, readFully(in));
+                    } finally {
+                        in.close();
+                    }
+                    names.add(name);
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private static void copyDirectory(JarOutputStream out, File directory, String path, String prefix,
+                                      List<String> names) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = path + file.getName();
+            if (file.isDirectory()) {
+                copyDirectory(out, file, name + "/", prefix, names);
+            } else if (isCopied(name, prefix)) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    writeEntry(out, name, readFully(in));
+                } finally {
+                    in.close();
+                }
+                names.add(name);
+            }
+        }
+    }
+
+    private static boolean isCopied(String name, String prefix) {
+        return name.startsWith(prefix) && name.endsWith(".class") && !name.startsWith(JMH_GENERATED_PACKAGE);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeEntry(JarOutputStream out, String name, byte[] data) throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        out.write(data);
+        out.closeEntry();
+    }
+
+    /**
+     * A public class without members, defining it only needs its super class.
+     *
+     * @param size the class is padded to it by an unknown attribute, which the JVM skips, if it's large enough
+     */
+    static byte[] emptyClass(String className, int size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0); // minor version
+        out.writeShort(50); // java 6, no stack map frames are needed
+        out.writeShort(6); // constant pool count
+        out.writeByte(7); // #1 class #2
+        out.writeShort(2);
+        out.writeByte(1); // #2 utf8
+        out.writeUTF(className.replace('.', '/'));
+        out.writeByte(7); // #3 class #4
+        out.writeShort(4);
+        out.writeByte(1); // #4 utf8
+        out.writeUTF("java/lang/Object");
+        out.writeByte(1); // #5 utf8
+        out.writeUTF("Padding");
+        out.writeShort(0x0021); // public super
+        out.writeShort(1); // this class
+        out.writeShort(3); // super class
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(0); // methods
+        // the attribute takes 6 bytes besides its content
+        int padding = size - bytes.size() - 2 - 6;
+        if (padding < 0) {
+            out.writeShort(0); // attributes
+        } else {
+            out.writeShort(1); // attributes
+            out.writeShort(5);
+            out.writeInt(padding);
+            out.write(new byte[padding]);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Counts the bytes written so far, which give the offsets of the nested jars.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * A read-only zip archive over a {@link ByteBuffer}, used to read nested jars in place from the memory-mapped fat jar
+ * instead of extracting them into temporary files.
+ *
+ * <p>
+ * Only the central directory is parsed. Stored entries are returned as slices of the underlying buffer, deflated
+ * entries are inflated on demand. Zip64 archives are not supported.
+ */
+class FatJarArchive {
+
+    private static final int     LOCAL_HEADER_SIGNATURE   = 0x04034b50;
+    private static final int     CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int     END_SIGNATURE            = 0x06054b50;
+    private static final int     LOCAL_HEADER_SIZE        = 30;
+    private static final int     CENTRAL_HEADER_SIZE      = 46;
+    private static final int     END_SIZE                 = 22;
+
+    private static final Charset UTF_8                    = Charset.forName("UTF-8");
+
+    private final ByteBuffer     buffer;
+
+    private String[]             names;
+    private int[]                methods;
+    private long[]               crcs;
+    private long[]               compressedSizes;
+    private long[]               sizes;
+    private long[]               localHeaderOffsets;
+    // value: entry + 1, 0 means empty
+    private int[]                table;
+
+    public FatJarArchive(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        parseCentralDirectory();
+    }
+
+    public static FatJarArchive map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to be mapped");
+            }
+            // the mapping stays valid after the channel is closed
+            return new FatJarArchive(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void parseCentralDirectory() throws IOException {
+        int limit = buffer.limit();
+        int end = -1;
+        for (int i = limit - END_SIZE; i >= Math.max(0, limit - END_SIZE - 0xffff); i--) {
+            if (buffer.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("end of central directory not found");
+        }
+        int count = buffer.getShort(end + 10) & 0xffff;
+        long centralDirectoryOffset = buffer.getInt(end + 16) & 0xffffffffL;
+        if (count == 0xffff || centralDirectoryOffset == 0xffffffffL) {
+            throw new IOException("zip64 isn't supported");
+        }
+        // the archive may be preceded by other data, so locate the central directory from its end
+        long centralDirectorySize = buffer.getInt(end + 12) & 0xffffffffL;
+        int base = (int) (end - centralDirectorySize - centralDirectoryOffset);
+        if (base < 0) {
+            throw new IOException("invalid central directory");
+        }
+        names = new String[count];
+        methods = new int[count];
+        crcs = new long[count];
+        compressedSizes = new long[count];
+        sizes = new long[count];
+        localHeaderOffsets = new long[count];
+        int capacity = Integer.highestOneBit(Math.max(count, 1) * 2) * 2;
+        table = new int[capacity];
+        int pos = (int) (base + centralDirectoryOffset);
+        for (int i = 0; i < count; i++) {
+            if (buffer.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("invalid central directory header");
+            }
+            methods[i] = buffer.getShort(pos + 10) & 0xffff;
+            crcs[i] = buffer.getInt(pos + 16) & 0xffffffffL;
+            compressedSizes[i] = buffer.getInt(pos + 20) & 0xffffffffL;
+            sizes[i] = buffer.getInt(pos + 24) & 0xffffffffL;
+            int nameLength = buffer.getShort(pos + 28) & 0xffff;
+            int extraLength = buffer.getShort(pos + 30) & 0xffff;
+            int commentLength = buffer.getShort(pos + 32) & 0xffff;
+            localHeaderOffsets[i] = base + (buffer.getInt(pos + 42) & 0xffffffffL);
+            byte[] nameBytes = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++) {
+                nameBytes[j] = buffer.get(pos + CENTRAL_HEADER_SIZE + j);
+            }
+            names[i] = new String(nameBytes, UTF_8);
+            // keep the first one of duplicated names as ZipFile does
+            if (getEntry(names[i]) < 0) {
+                int mask = table.length - 1;
+                int slot = names[i].hashCode() & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = i + 1;
+            }
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return the entry of <code>name</code>, or -1
+     */
+    public int getEntry(String name) {
+        int mask = table.length - 1;
+        for (int slot = name.hashCode() & mask;; slot = (slot + 1) & mask) {
+            int value = table[slot];
+            if (value == 0) {
+                return -1;
+            }
+            if (names[value - 1].equals(name)) {
+                return value - 1;
+            }
+        }
+    }
+
+    public String getName(int entry) {
+        return names[entry];
+    }
+
+    public int getMethod(int entry) {
+        return methods[entry];
+    }
+
+    public long getCrc(int entry) {
+        return crcs[entry];
+    }
+
+    public long getCompressedSize(int entry) {
+        return compressedSizes[entry];
+    }
+
+    public long getSize(int entry) {
+        return sizes[entry];
+    }
+
+    public boolean isDirectory(int entry) {
+        return names[entry].endsWith("/");
+    }
+
+    /**
+     * @return the raw data of the entry, which is compressed if the entry isn't stored
+     */
+    public ByteBuffer getRawData(int entry) throws IOException {
+        int pos = (int) localHeaderOffsets[entry];
+        if (buffer.getInt(pos) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("invalid local header of " + names[entry]);
+        }
+        int nameLength = buffer.getShort(pos + 26) & 0xffff;
+        int extraLength = buffer.getShort(pos + 28) & 0xffff;
+        return slice(pos + LOCAL_HEADER_SIZE + nameLength + extraLength, (int) compressedSizes[entry]);
+    }
+
+    /**
+     * @return the content of the entry, a slice of the archive if the entry is stored
+     */
+    public ByteBuffer getData(int entry) throws IOException {
+        ByteBuffer rawData = getRawData(entry);
+        if (methods[entry] == ZipEntry.STORED) {
+            return rawData;
+        }
+        InputStream inputStream = getInputStream(entry);
+        try {
+            byte[] bytes = new byte[(int) sizes[entry]];
+            int pos = 0;
+            while (pos < bytes.length) {
+                int n = inputStream.read(bytes, pos, bytes.length - pos);
+                if (n <= 0) {
+                    throw new EOFException("unexpected end of " + names[entry]);
+                }
+                pos += n;
+            }
+            return ByteBuffer.wrap(bytes);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    public InputStream getInputStream(int entry) throws IOException {
+        InputStream inputStream = new ByteBufferInputStream(getRawData(entry));
+        if (methods[entry] == ZipEntry.STORED) {
+            return inputStream;
+        } else if (methods[entry] == ZipEntry.DEFLATED) {
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(inputStream, inflater, 8192) {
+
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed) {
+                        closed = true;
+                        inflater.end();
+                        super.close();
+                    }
+                }
+
+                @Override
+                protected void fill() throws IOException {
+                    // the raw deflate stream of a zip entry needs a trailing dummy byte
+                    try {
+                        super.fill();
+                    } catch (EOFException e) {
+                        buf[0] = 0;
+                        len = 1;
+                        inf.setInput(buf, 0, 1);
+                    }
+                }
+            };
+        } else {
+            throw new IOException("unsupported compression method " + methods[entry] + " of " + names[entry]);
+        }
+    }
+
+    /**
+     * @return the nested archive of a stored entry
+     */
+    public FatJarArchive openNestedArchive(int entry) throws IOException {
+        if (methods[entry] != ZipEntry.STORED) {
+            throw new IOException(names[entry] + " isn't stored");
+        }
+        return new FatJarArchive(getRawData(entry));
+    }
+
+    public Manifest getManifest() throws IOException {
+        int entry = getEntry(JarFile.MANIFEST_NAME);
+        if (entry < 0) {
+            return null;
+        }
+        InputStream inputStream = getInputStream(entry);
+        try {
+            return new Manifest(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Signed jars must be verified by {@link JarFile}, they can't be read in place.
+     */
+    public boolean isSigned() {
+        for (String name : names) {
+            if (name.startsWith("META-INF/")) {
+                String upperCaseName = name.toUpperCase();
+                if (upperCaseName.endsWith(".SF") || upperCaseName.endsWith(".RSA")
+                    || upperCaseName.endsWith(".DSA") || upperCaseName.endsWith(".EC")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private ByteBuffer slice(int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            throw new IOException("entry data out of range");
+        }
+        ByteBuffer temp = buffer.duplicate();
+        // use Buffer's methods, ByteBuffer's covariant overrides don't exist before java 9
+        ((Buffer) temp).position(offset);
+        ((Buffer) temp).limit(offset + length);
+        return temp.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            ((Buffer) buffer).position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
+    }
+}
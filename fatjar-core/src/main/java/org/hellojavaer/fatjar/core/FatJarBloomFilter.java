@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+/**
+ * Blocked bloom filter over the entry name hashes of {@link FatJarEntryIndex}.
+ *
+ * <p>
+ * All bits of a name are in one block of 512 bits (a cache line), so a query touches one cache line. The filter is
+ * immutable once built and is read without locks. With 10 bits per entry the false positive rate is about 1%.
+ */
+class FatJarBloomFilter {
+
+    private static final int BITS_PER_ENTRY  = 10;
+    private static final int WORDS_PER_BLOCK = 8;
+    private static final int HASH_COUNT      = 6;
+
+    private final long[]     words;
+    private final int        blockCount;
+
+    public FatJarBloomFilter(int expectedEntries) {
+        long bits = Math.max(512L, (long) expectedEntries * BITS_PER_ENTRY);
+        this.blockCount = (int) Math.min((bits + 511) / 512, Integer.MAX_VALUE / WORDS_PER_BLOCK);
+        this.words = new long[blockCount * WORDS_PER_BLOCK];
+    }
+
+    void add(long hash) {
+        int base = block(hash) * WORDS_PER_BLOCK;
+        long h = remix(hash);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = (int) (h & 511);
+            words[base + (bit >>> 6)] |= 1L << bit;
+            h >>>= 9;
+        }
+    }
+
+    /**
+     * @return false if the name of <code>hash</code> is definitely absent
+     */
+    public boolean mightContain(long hash) {
+        int base = block(hash) * WORDS_PER_BLOCK;
+        long h = remix(hash);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = (int) (h & 511);
+            if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+            h >>>= 9;
+        }
+        return true;
+    }
+
+    private int block(long hash) {
+        return (int) (((hash >>> 32) * blockCount) >>> 32);
+    }
+
+    // the bits inside a block must not depend on the bits which select the block
+    private static long remix(long hash) {
+        long h = hash ^ (hash >>> 29);
+        h *= 0xbf58476d1ce4e5b9L;
+        return h ^ (h >>> 32);
+    }
+}
@@ -15,23 +15,28 @@
  */
 package org.hellojavaer.fatjar.core;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.security.AccessControlException;
 import java.security.CodeSource;
 import java.security.Policy;
 import java.security.cert.Certificate;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
 
 /**
  * The implement of this class referenced {@link org.apache.catalina.loader.WebappClassLoaderBase}
@@ -53,15 +58,40 @@ public class FatJarClassLoader extends URLClassLoader {
     private boolean                           delegate                     = true;
 
     private JarFile                           fatJar                       = null;
-    private Map<String, JarFile>              dependencyJars               = new LinkedHashMap<>();
+    // opens the resource urls of fatJar
+    private FatJarResourceURLStreamHandler    urlStreamHandler             = null;
+    private Map<String, NestedJar>            dependencyJars               = new LinkedHashMap<>();
     private List<FatJarClassLoader>           subClassLoaders              = new ArrayList<>();
 
-    private Map<String, ResourceEntry>        loadedResources              = new HashMap<>();
-    private Set<String>                       notFoundResources            = new HashSet<>();
+    private Map<String, ResourceEntry>        loadedResources              = new ConcurrentHashMap<>();
 
-    private ConcurrentHashMap<String, Object> lockMap                      = new ConcurrentHashMap<>();
+    // a lock object is removed as soon as no thread holds it
+    private ConcurrentMap<String, LockObject> lockMap                      = new ConcurrentHashMap<>();
 
-    private boolean                           initedNestedJars             = false;
+    private volatile boolean                  initedNestedJars             = false;
+    private volatile boolean                  closed                       = false;
+
+    private volatile FatJarEntryIndex         entryIndex                   = null;
+    // negative cache of findResourceInternal, built from entryIndex
+    private volatile FatJarBloomFilter        notFoundFilter               = null;
+    private final AtomicLong                  notFoundFilterHits           = new AtomicLong();
+    private final AtomicLong                  notFoundFilterFalsePositives = new AtomicLong();
+    // key: ordinal in entryIndex
+    private NestedJar[]                       indexedJars                  = null;
+
+    private final AtomicInteger               openedNestedJarCount         = new AtomicInteger();
+
+    // the fat jar mapped into memory, used to read stored nested jars in place
+    private final Object                      mappingLock                  = new Object();
+    private FatJarArchive                     mappedFatJar                 = null;
+    private boolean                           mappingFailed                = false;
+
+    // not null while the served classes and resources are recorded
+    private volatile FatJarPreloadProfile     recordingProfile             = null;
+    // saves recordingProfile if the JVM exits first
+    private Thread                            recordingShutdownHook        = null;
+
+    private final FatJarMetrics               metrics;
 
     private ClassLoader                       child                        = null;
 
@@ -75,11 +105,29 @@ public class FatJarClassLoader extends URLClassLoader {
         if (logger.isDebugEnabled()) {
             logger.debug("FatJarClassLoader is loaded by " + FatJarClassLoader.class.getClassLoader());
         }
+        registerAsParallelCapable();
         // 0. force the classload which loaded FatJarClassLoader to load the following directly dependency classes
         Class<?> temp = ResourceEntry.class;
+        temp = LockObject.class;
+        temp = NestedJar.class;
+        temp = PreparedJar.class;
+        temp = NestedJarPreparer.class;
+        temp = NestedJarThreadFactory.class;
+        temp = FatJarArchive.class;
+        temp = FatJarArchive.ByteBufferInputStream.class;
         temp = FatJarReflectionUtils.class;
+        temp = FatJarDelegationHandles.class;
         temp = FatJarSystemConfig.class;
         temp = FatJarTempFileManager.class;
+        temp = FatJarEntryIndex.class;
+        temp = FatJarBloomFilter.class;
+        temp = FatJarPreloadProfile.class;
+        temp = FatJarPreloadProfile.ShutdownHook.class;
+        temp = FatJarMetrics.class;
+        temp = FatJarMetricsMXBean.class;
+        temp = FatJarStripedCounters.class;
+        temp = FatJarLogWriter.class;
+        temp = FatJarResourceURLStreamHandler.class;
         //
         ClassLoader cl = String.class.getClassLoader();
         if (cl == null) {
@@ -106,6 +154,10 @@ public class FatJarClassLoader extends URLClassLoader {
         this.fatJar = fatJar;
         this.child = child;
         this.delegate = delegate;
+        if (fatJar != null) {
+            this.urlStreamHandler = new FatJarResourceURLStreamHandler(url + SEPARATOR, fatJar);
+        }
+        this.metrics = new FatJarMetrics(url.toString(), getClass().getSimpleName(), this);
     }
 
     public FatJarClassLoader(JarFile fatJar, URL url, ClassLoader parent, ClassLoader child, boolean delegate,
@@ -115,6 +167,10 @@ public class FatJarClassLoader extends URLClassLoader {
         this.child = child;
         this.delegate = delegate;
         this.useSelfAsChildrensParent = useSelfAsChildrensParent;
+        if (fatJar != null) {
+            this.urlStreamHandler = new FatJarResourceURLStreamHandler(url + SEPARATOR, fatJar);
+        }
+        this.metrics = new FatJarMetrics(url.toString(), getClass().getSimpleName(), this);
     }
 
     protected List<FatJarClassLoader> getSubClassLoaders() {
@@ -134,51 +190,320 @@ public class FatJarClassLoader extends URLClassLoader {
         if (initedNestedJars == false) {
             synchronized (this) {
                 if (initedNestedJars == false) {
-                    Enumeration<JarEntry> jarEntries = fatJar.entries();
-                    if (jarEntries != null) {
-                        while (jarEntries.hasMoreElements()) {
-                            JarEntry jarEntry = jarEntries.nextElement();
-                            if (!jarEntry.isDirectory() && jarEntry.getName().endsWith(".jar")) {
+                    FatJarEntryIndex index = loadEntryIndex();
+                    if (index != null) {
+                        // the index knows every nested jar, so plain jars are opened on the first lookup routed to them
+                        NestedJar[] jars = new NestedJar[index.getJarCount() + 1];
+                        for (int i = 1; i < jars.length; i++) {
+                            JarEntry jarEntry = fatJar.getJarEntry(index.getJarName(i));
+                            if (index.isFatJar(i)) {
                                 try {
-                                    URL nestedJarURL = new URL(getURL().toString() + SEPARATOR + jarEntry.getName());
-                                    JarFile nestedJarFile = FatJarTempFileManager.buildJarFile(nestedJarURL.getFile(),
-                                                                                               jarEntry.getTime(),
-                                                                                               fatJar.getInputStream(jarEntry));
-                                    Manifest manifest = nestedJarFile.getManifest();
-                                    if (isFatJar(manifest)) {
-                                        if (useSelfAsChildrensParent) {
-                                            FatJarClassLoader subClassLoader = new FatJarClassLoader(nestedJarFile,
-                                                                                                     nestedJarURL,
-                                                                                                     this, child,
-                                                                                                     delegate, false);
-                                            subClassLoader.fatJarClassLoaderLevel = this.fatJarClassLoaderLevel + 1;
-                                            subClassLoader.fatJarClassLoaderParent = this;
-                                            subClassLoaders.add(subClassLoader);
-                                        } else {
-                                            FatJarClassLoader subClassLoader = new FatJarClassLoader(nestedJarFile,
-                                                                                                     nestedJarURL,
-                                                                                                     getParent(),
-                                                                                                     child, delegate,
-                                                                                                     false);
-                                            subClassLoader.fatJarClassLoaderLevel = this.fatJarClassLoaderLevel + 1;
-                                            subClassLoader.fatJarClassLoaderParent = this;
-                                            subClassLoaders.add(subClassLoader);
-                                        }
-                                    } else {
-                                        dependencyJars.put(jarEntry.getName(), nestedJarFile);
-                                    }
+                                    addSubClassLoader(jarEntry, null);
                                 } catch (IOException e) {
                                     e.printStackTrace();
                                 }
-                            }// else ignore
+                            } else {
+                                jars[i] = new NestedJar(jarEntry);
+                                dependencyJars.put(jarEntry.getName(), jars[i]);
+                            }
                         }
+                        indexedJars = jars;
+                    } else {
+                        List<JarEntry> nestedJarEntries = new ArrayList<>();
+                        Enumeration<JarEntry> jarEntries = fatJar.entries();
+                        if (jarEntries != null) {
+                            while (jarEntries.hasMoreElements()) {
+                                JarEntry jarEntry = jarEntries.nextElement();
+                                if (!jarEntry.isDirectory() && jarEntry.getName().endsWith(".jar")) {
+                                    nestedJarEntries.add(jarEntry);
+                                }// else ignore
+                            }
+                        }
+                        index = buildEntryIndex(prepareNestedJars(nestedJarEntries));
                     }
+                    notFoundFilter = index.buildBloomFilter();
+                    entryIndex = index;
                     initedNestedJars = true;
                 }
             }
         }
     }
 
+    /**
+     * Opens nested jars and lists their entries, on a pool of {@link FatJarSystemConfig#getNestedJarParallelism()}
+     * threads if it's greater than 1.
+     *
+     * @return the prepared jars in the order of <code>nestedJarEntries</code>, null for the ones which failed
+     */
+    private List<PreparedJar> prepareNestedJars(List<JarEntry> nestedJarEntries) {
+        int parallelism = Math.min(FatJarSystemConfig.getNestedJarParallelism(), nestedJarEntries.size());
+        List<PreparedJar> preparedJars = new ArrayList<>(nestedJarEntries.size());
+        long start = System.nanoTime();
+        if (parallelism <= 1) {
+            for (JarEntry jarEntry : nestedJarEntries) {
+                try {
+                    preparedJars.add(prepareNestedJar(jarEntry));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    preparedJars.add(null);
+                }
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("[prepareNestedJars] prepared %d nested jars of %s in %d ms",
+                                           nestedJarEntries.size(), getURL(), (System.nanoTime() - start) / 1000000));
+            }
+            return preparedJars;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new NestedJarThreadFactory());
+        try {
+            List<Future<PreparedJar>> futures = new ArrayList<>(nestedJarEntries.size());
+            for (JarEntry jarEntry : nestedJarEntries) {
+                futures.add(executor.submit(new NestedJarPreparer(jarEntry)));
+            }
+            // merge in submission order, so the lookup precedence doesn't depend on scheduling
+            boolean interrupted = false;
+            for (Future<PreparedJar> future : futures) {
+                while (true) {
+                    try {
+                        preparedJars.add(future.get());
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        e.getCause().printStackTrace();
+                        preparedJars.add(null);
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // compare with the debug log of a sequential boot for the speedup
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("[prepareNestedJars] prepared %d nested jars of %s in %d ms with %d threads",
+                                      nestedJarEntries.size(), getURL(), (System.nanoTime() - start) / 1000000,
+                                      parallelism));
+        }
+        return preparedJars;
+    }
+
+    private PreparedJar prepareNestedJar(JarEntry jarEntry) throws IOException {
+        NestedJar nestedJar = new NestedJar(jarEntry);
+        openNestedJar(nestedJar);
+        if (isFatJar(nestedJar.getManifest())) {
+            JarFile nestedJarFile = nestedJar.getJarFile();
+            if (nestedJarFile == null) {
+                nestedJarFile = extractNestedJar(jarEntry);
+            }
+            return new PreparedJar(nestedJar, nestedJarFile, null);
+        }
+        List<String> entryNames = new ArrayList<>();
+        if (nestedJar.getArchive() != null) {
+            FatJarArchive archive = nestedJar.getArchive();
+            for (int i = 0; i < archive.size(); i++) {
+                entryNames.add(archive.getName(i));
+            }
+        } else {
+            Enumeration<JarEntry> nestedEntries = nestedJar.getJarFile().entries();
+            while (nestedEntries.hasMoreElements()) {
+                entryNames.add(nestedEntries.nextElement().getName());
+            }
+        }
+        return new PreparedJar(nestedJar, null, entryNames);
+    }
+
+    private JarFile extractNestedJar(JarEntry jarEntry) throws IOException {
+        URL nestedJarURL = new URL(getURL().toString() + SEPARATOR + jarEntry.getName());
+        metrics.nestedJarExtracted();
+        return FatJarTempFileManager.buildJarFile(nestedJarURL.getFile(), fatJar, jarEntry);
+    }
+
+    private void addSubClassLoader(JarEntry jarEntry, JarFile nestedJarFile) throws IOException {
+        URL nestedJarURL = new URL(getURL().toString() + SEPARATOR + jarEntry.getName());
+        if (nestedJarFile == null) {
+            nestedJarFile = extractNestedJar(jarEntry);
+        }
+        FatJarClassLoader subClassLoader = new FatJarClassLoader(nestedJarFile, nestedJarURL,
+                                                                 useSelfAsChildrensParent ? this : getParent(), child,
+                                                                 delegate, false);
+        subClassLoader.fatJarClassLoaderLevel = this.fatJarClassLoaderLevel + 1;
+        subClassLoader.fatJarClassLoaderParent = this;
+        subClassLoaders.add(subClassLoader);
+    }
+
+    /**
+     * Reads a nested jar in place or extracts it, at most once.
+     *
+     * @return false if the nested jar can't be opened
+     */
+    private boolean openNestedJar(NestedJar nestedJar) throws IOException {
+        if (nestedJar.isOpened()) {
+            return !nestedJar.isFailed();
+        }
+        synchronized (nestedJar) {
+            if (nestedJar.isOpened()) {
+                return !nestedJar.isFailed();
+            }
+            JarEntry jarEntry = nestedJar.getJarEntry();
+            String prefix = getURL() + SEPARATOR + jarEntry.getName() + SEPARATOR;
+            try {
+                FatJarArchive archive = openNestedArchive(jarEntry);
+                if (archive != null) {
+                    nestedJar.setArchive(archive, archive.getManifest(),
+                                         new FatJarResourceURLStreamHandler(prefix, archive));
+                } else {
+                    JarFile nestedJarFile = extractNestedJar(jarEntry);
+                    nestedJar.setJarFile(nestedJarFile, nestedJarFile.getManifest(),
+                                         new FatJarResourceURLStreamHandler(prefix, nestedJarFile));
+                }
+            } catch (IOException e) {
+                nestedJar.setFailed();
+                throw e;
+            }
+            if (closed) {
+                // the handlers which were open were closed by close()
+                nestedJar.getURLStreamHandler().close();
+            }
+            openedNestedJarCount.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("[openNestedJar] opened " + jarEntry.getName() + " of " + getURL());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the archive of a stored nested jar which is read in place, or null if it must be extracted
+     */
+    private FatJarArchive openNestedArchive(JarEntry jarEntry) {
+        if (jarEntry.getMethod() != ZipEntry.STORED || !FatJarSystemConfig.isReadNestedJarsInPlace()) {
+            return null;
+        }
+        try {
+            FatJarArchive mappedFatJar = getMappedFatJar();
+            if (mappedFatJar == null) {
+                return null;
+            }
+            int entry = mappedFatJar.getEntry(jarEntry.getName());
+            if (entry < 0) {
+                return null;
+            }
+            FatJarArchive archive = mappedFatJar.openNestedArchive(entry);
+            if (archive.isSigned()) {
+                return null;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("[openNestedArchive] read " + jarEntry.getName() + " of " + getURL() + " in place");
+            }
+            return archive;
+        } catch (IOException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("[openNestedArchive] can't read " + jarEntry.getName() + " of " + getURL()
+                             + " in place, " + e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    private FatJarArchive getMappedFatJar() throws IOException {
+        synchronized (mappingLock) {
+            if (mappedFatJar == null && !mappingFailed) {
+                try {
+                    mappedFatJar = FatJarArchive.map(new File(fatJar.getName()));
+                } catch (IOException e) {
+                    mappingFailed = true;
+                    throw e;
+                }
+            }
+            return mappedFatJar;
+        }
+    }
+
+    private FatJarEntryIndex loadEntryIndex() {
+        JarEntry indexEntry = fatJar.getJarEntry(FatJarEntryIndex.INDEX_ENTRY_NAME);
+        if (indexEntry == null) {
+            return null;
+        }
+        InputStream inputStream = null;
+        try {
+            inputStream = fatJar.getInputStream(indexEntry);
+            FatJarEntryIndex index = FatJarEntryIndex.load(inputStream);
+            // nested jars are trusted without being opened, so they must be the ones the index was built from
+            int nestedJarCount = 0;
+            Enumeration<JarEntry> jarEntries = fatJar.entries();
+            while (jarEntries.hasMoreElements()) {
+                JarEntry jarEntry = jarEntries.nextElement();
+                if (!jarEntry.isDirectory() && jarEntry.getName().endsWith(".jar")) {
+                    nestedJarCount++;
+                }
+            }
+            boolean matched = nestedJarCount == index.getJarCount();
+            for (int i = 1; matched && i <= index.getJarCount(); i++) {
+                JarEntry jarEntry = fatJar.getJarEntry(index.getJarName(i));
+                matched = jarEntry != null && jarEntry.getCrc() == index.getJarCrc(i);
+            }
+            if (!matched) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("[loadEntryIndex] " + FatJarEntryIndex.INDEX_ENTRY_NAME + " of " + getURL()
+                                + " doesn't match its nested jars and is ignored");
+                }
+                return null;
+            }
+            return index;
+        } catch (IOException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("[loadEntryIndex] read " + FatJarEntryIndex.INDEX_ENTRY_NAME + " of " + getURL()
+                            + " failed, " + e.getMessage());
+            }
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private FatJarEntryIndex buildEntryIndex(List<PreparedJar> preparedJars) {
+        FatJarEntryIndex.Builder builder = new FatJarEntryIndex.Builder();
+        List<NestedJar> jars = new ArrayList<>();
+        jars.add(null);
+        Enumeration<JarEntry> jarEntries = fatJar.entries();
+        while (jarEntries.hasMoreElements()) {
+            builder.addEntry(jarEntries.nextElement().getName(), 0);
+        }
+        for (PreparedJar preparedJar : preparedJars) {
+            if (preparedJar == null) {
+                continue;
+            }
+            NestedJar nestedJar = preparedJar.getNestedJar();
+            JarEntry nestedJarEntry = nestedJar.getJarEntry();
+            if (preparedJar.getFatJarFile() != null) {
+                try {
+                    addSubClassLoader(nestedJarEntry, preparedJar.getFatJarFile());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+            dependencyJars.put(nestedJar.getName(), nestedJar);
+            int ordinal = builder.addJar(nestedJar.getName(), nestedJarEntry.getSize(), nestedJarEntry.getCrc());
+            jars.add(nestedJar);
+            for (String entryName : preparedJar.getEntryNames()) {
+                builder.addEntry(entryName, ordinal);
+            }
+        }
+        indexedJars = jars.toArray(new NestedJar[jars.size()]);
+        return builder.build();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -203,20 +528,102 @@ public class FatJarClassLoader extends URLClassLoader {
 
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
-        return findClassInternal(name);
+        LockObject lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                return findClassInternal(name);
+            }
+        } finally {
+            releaseLock(name, lock);
+        }
     }
 
     @Override
     public URL findResource(String name) {
-        synchronized (getLockObject(name)) {
-            ResourceEntry resource = findResourceInternal(name, name);
-            return resource.getUrl();
+        LockObject lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                return findResource0(name);
+            }
+        } finally {
+            releaseLock(name, lock);
         }
     }
 
+    private URL findResource0(String name) {
+        ResourceEntry resource = findResourceInternal(name, name);
+        return resource == null ? null : resource.getUrl();
+    }
+
+    /**
+     * Finds every copy of the resource in the fat jar, its nested jars and its nested fat jars, in packaging order.
+     */
     @Override
     public Enumeration<URL> findResources(String name) throws IOException {
-        return super.findResources(name);
+        List<URL> result = findResourcesInternal(name);
+        for (FatJarClassLoader subClassLoader : getSubClassLoaders()) {
+            result.addAll(Collections.list(subClassLoader.findResources(name)));
+        }
+        return Collections.enumeration(result);
+    }
+
+    /**
+     * Lists the entries whose names start with <code>prefix</code> in the fat jar, its nested jars and its nested fat
+     * jars, in the order of {@link #findResources(String)}. The names are read from the directories which are kept in
+     * memory, no url is opened and no entry is read. Directories are skipped.
+     *
+     * @param prefix e.g. <code>com/foo/</code> for the package <code>com.foo</code> and its sub packages
+     * @return false if the visitor stopped scanning
+     */
+    public boolean scanEntries(String prefix, FatJarEntryVisitor visitor) throws IOException {
+        if (this.fatJar != null) {
+            Enumeration<JarEntry> jarEntries = this.fatJar.entries();
+            while (jarEntries.hasMoreElements()) {
+                JarEntry jarEntry = jarEntries.nextElement();
+                String name = jarEntry.getName();
+                if (!jarEntry.isDirectory() && name.startsWith(prefix) && !filterResource(name)
+                    && !visitor.visit(getURL(), name, jarEntry.getSize())) {
+                    return false;
+                }
+            }
+        }
+        initNestedJars();
+        for (NestedJar nestedJar : this.indexedJars) {
+            if (nestedJar != null && openNestedJar(nestedJar) && !scanEntries(nestedJar, prefix, visitor)) {
+                return false;
+            }
+        }
+        for (FatJarClassLoader subClassLoader : getSubClassLoaders()) {
+            if (!subClassLoader.scanEntries(prefix, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean scanEntries(NestedJar nestedJar, String prefix, FatJarEntryVisitor visitor) throws IOException {
+        URL jarURL = new URL(getURL().toString() + SEPARATOR + nestedJar.getName());
+        if (nestedJar.getJarFile() != null) {
+            Enumeration<JarEntry> jarEntries = nestedJar.getJarFile().entries();
+            while (jarEntries.hasMoreElements()) {
+                JarEntry jarEntry = jarEntries.nextElement();
+                String name = jarEntry.getName();
+                if (!jarEntry.isDirectory() && name.startsWith(prefix) && !filterResource(name)
+                    && !visitor.visit(jarURL, name, jarEntry.getSize())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        FatJarArchive archive = nestedJar.getArchive();
+        for (int i = 0; i < archive.size(); i++) {
+            String name = archive.getName(i);
+            if (!archive.isDirectory(i) && name.startsWith(prefix) && !filterResource(name)
+                && !visitor.visit(jarURL, name, archive.getSize(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -226,269 +633,387 @@ public class FatJarClassLoader extends URLClassLoader {
 
     @Override
     public Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        // a defined class is returned without locking, only the lookups which do some work are timed
+        ResourceEntry resource = loadedResources.get(name);
+        if (resource != null && resource.getClazz() != null) {
+            metrics.loadedResourcesHit();
+            if (resolve) {
+                resolveClass(resource.getClazz());
+            }
+            return resource.getClazz();
+        }
+        long start = System.nanoTime();
+        LockObject lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                return loadClass0(name, resolve);
+            }
+        } finally {
+            releaseLock(name, lock);
+            metrics.classLookup(start);
+        }
+    }
+
+    private Class<?> loadClass0(String name, boolean resolve) throws ClassNotFoundException {
         Class<?> clazz = null;
-        synchronized (getLockObject(name)) {
-            // 0. find in local cache
-            ResourceEntry resource = loadedResources.get(name);
-            if (resource != null) {
-                clazz = resource.getClazz();
+        // 0. find in local cache, a preloaded class may not be defined yet
+        ResourceEntry resource = loadedResources.get(name);
+        if (resource != null && resource.getClazz() != null) {
+            metrics.loadedResourcesHit();
+            clazz = resource.getClazz();
+            if (resolve) {
+                resolveClass(clazz);
+            }
+            return clazz;
+        }
+        metrics.loadedResourcesMiss();
+
+        // 1. load by j2se
+        try {
+            clazz = j2seClassLoader.loadClass(name);
+            if (clazz != null) {
+                metrics.classHit(FatJarMetrics.TIER_J2SE);
                 if (resolve) {
                     resolveClass(clazz);
                 }
                 return clazz;
             }
+        } catch (ClassNotFoundException e) {
+            // ignore;
+        }
+        metrics.classMiss(FatJarMetrics.TIER_J2SE);
 
-            // 1. load by j2se
-            try {
-                clazz = j2seClassLoader.loadClass(name);
-                if (clazz != null) {
-                    if (resolve) {
-                        resolveClass(clazz);
-                    }
-                    return clazz;
-                }
-            } catch (ClassNotFoundException e) {
-                // ignore;
-            }
-
-            // 2.0 load from local resources
-            try {
-                clazz = findClassInternal(name);
-                if (clazz != null) {
-                    if (resolve) {
-                        resolveClass(clazz);
-                    }
-                    return clazz;
+        // 2.0 load from local resources
+        try {
+            clazz = findClassInternal(name);
+            if (clazz != null) {
+                metrics.classHit(FatJarMetrics.TIER_LOCAL);
+                if (resolve) {
+                    resolveClass(clazz);
                 }
-            } catch (ClassNotFoundException e) {
-                // ignore
+                return clazz;
             }
-            // 2.1 load by sub-classload which will recursive find in fat-jar
-            for (FatJarClassLoader subClassLoader : getSubClassLoaders()) {
-                if (subClassLoader.containsClass(name)) {
-                    try {
-                        clazz = subClassLoader.loadClass(name, resolve);
-                        if (clazz != null) {
-                            if (resolve) {
-                                resolveClass(clazz);
-                            }
-                            return clazz;
+        } catch (ClassNotFoundException e) {
+            // ignore
+        }
+        metrics.classMiss(FatJarMetrics.TIER_LOCAL);
+        // 2.1 load by sub-classload which will recursive find in fat-jar
+        for (FatJarClassLoader subClassLoader : getSubClassLoaders()) {
+            if (subClassLoader.containsClass(name)) {
+                try {
+                    clazz = subClassLoader.loadClass(name, resolve);
+                    if (clazz != null) {
+                        metrics.classHit(FatJarMetrics.TIER_SUB_LOADER);
+                        if (resolve) {
+                            resolveClass(clazz);
                         }
-                    } catch (ClassNotFoundException e) {
-                        // ignore
+                        return clazz;
                     }
+                } catch (ClassNotFoundException e) {
+                    // ignore
                 }
             }
+        }
+        if (!getSubClassLoaders().isEmpty()) {
+            metrics.classMiss(FatJarMetrics.TIER_SUB_LOADER);
+        }
 
-            // 3.0
-            if (delegate && getParent() != null) {
-                clazz = invokeLoadClass(getParent(), name, resolve);
-                if (clazz != null) {
-                    if (resolve) {
-                        resolveClass(clazz);
-                    }
-                    return clazz;
+        // 3.0
+        if (delegate && getParent() != null) {
+            clazz = invokeLoadClass(getParent(), name, resolve);
+            if (clazz != null) {
+                metrics.classHit(FatJarMetrics.TIER_PARENT);
+                if (resolve) {
+                    resolveClass(clazz);
                 }
+                return clazz;
             }
-            // 3.1
-            if (child != null) {
-                clazz = invokeFindClass(child, name);
-                if (clazz != null) {
-                    if (resolve) {
-                        resolveClass(clazz);
-                    }
-                    return clazz;
+            metrics.classMiss(FatJarMetrics.TIER_PARENT);
+        }
+        // 3.1
+        if (child != null) {
+            clazz = invokeFindClass(child, name);
+            if (clazz != null) {
+                metrics.classHit(FatJarMetrics.TIER_CHILD);
+                if (resolve) {
+                    resolveClass(clazz);
                 }
+                return clazz;
             }
-            // 3.2
-            if (!delegate && getParent() != null) {
-                clazz = invokeLoadClass(getParent(), name, resolve);
-                if (clazz != null) {
-                    if (resolve) {
-                        resolveClass(clazz);
-                    }
-                    return clazz;
+            metrics.classMiss(FatJarMetrics.TIER_CHILD);
+        }
+        // 3.2
+        if (!delegate && getParent() != null) {
+            clazz = invokeLoadClass(getParent(), name, resolve);
+            if (clazz != null) {
+                metrics.classHit(FatJarMetrics.TIER_PARENT);
+                if (resolve) {
+                    resolveClass(clazz);
                 }
+                return clazz;
             }
-            //
-            return null;
+            metrics.classMiss(FatJarMetrics.TIER_PARENT);
         }
+        //
+        return null;
     }
 
     //
     @Override
     public URL getResource(String name) {
-        synchronized (getLockObject(name)) {
-            // 0. find in local cache
-            ResourceEntry resource = loadedResources.get(name);
-            if (resource != null) {
-                return resource.getUrl();
+        ResourceEntry resource = loadedResources.get(name);
+        if (resource != null) {
+            metrics.loadedResourcesHit();
+            return resource.getUrl();
+        }
+        long start = System.nanoTime();
+        LockObject lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                return getResource0(name);
             }
+        } finally {
+            releaseLock(name, lock);
+            metrics.resourceLookup(start);
+        }
+    }
 
-            // 1. load by j2se
-            URL url = j2seClassLoader.getResource(name);
-            if (url != null) {
-                return url;
-            }
+    private URL getResource0(String name) {
+        // 0. find in local cache
+        ResourceEntry resource = loadedResources.get(name);
+        if (resource != null) {
+            metrics.loadedResourcesHit();
+            return resource.getUrl();
+        }
+        metrics.loadedResourcesMiss();
 
-            // 2.0
-            resource = findResourceInternal(name, name);
-            if (resource != null) {
-                return resource.getUrl();
-            }
-            // 2.1
-            for (FatJarClassLoader subClassLoader : getSubClassLoaders()) {
-                if (subClassLoader.containsResource(name)) {
-                    url = subClassLoader.getResource(name);
-                    if (url != null) {
-                        return url;
-                    }
-                }
-            }
+        // 1. load by j2se
+        URL url = j2seClassLoader.getResource(name);
+        if (url != null) {
+            metrics.resourceHit(FatJarMetrics.TIER_J2SE);
+            return url;
+        }
+        metrics.resourceMiss(FatJarMetrics.TIER_J2SE);
 
-            // 3.0 parent delegate
-            if (delegate && getParent() != null) {
-                url = getParent().getResource(name);
+        // 2.0
+        resource = findResourceInternal(name, name);
+        if (resource != null) {
+            metrics.resourceHit(FatJarMetrics.TIER_LOCAL);
+            return resource.getUrl();
+        }
+        metrics.resourceMiss(FatJarMetrics.TIER_LOCAL);
+        // 2.1
+        for (FatJarClassLoader subClassLoader : getSubClassLoaders()) {
+            if (subClassLoader.containsResource(name)) {
+                url = subClassLoader.getResource(name);
                 if (url != null) {
+                    metrics.resourceHit(FatJarMetrics.TIER_SUB_LOADER);
                     return url;
                 }
             }
-            // 3.1
-            if (child != null) {
-                url = invokeFindResource(child, name);
-                if (url != null) {
-                    return url;
-                }
+        }
+        if (!getSubClassLoaders().isEmpty()) {
+            metrics.resourceMiss(FatJarMetrics.TIER_SUB_LOADER);
+        }
+
+        // 3.0 parent delegate
+        if (delegate && getParent() != null) {
+            url = getParent().getResource(name);
+            if (url != null) {
+                metrics.resourceHit(FatJarMetrics.TIER_PARENT);
+                return url;
             }
-            // 3.2
-            if (!delegate && getParent() != null) {
-                url = getParent().getResource(name);
-                if (url != null) {
-                    return url;
-                }
+            metrics.resourceMiss(FatJarMetrics.TIER_PARENT);
+        }
+        // 3.1
+        if (child != null) {
+            url = invokeFindResource(child, name);
+            if (url != null) {
+                metrics.resourceHit(FatJarMetrics.TIER_CHILD);
+                return url;
             }
-            //
-            return null;
+            metrics.resourceMiss(FatJarMetrics.TIER_CHILD);
         }
+        // 3.2
+        if (!delegate && getParent() != null) {
+            url = getParent().getResource(name);
+            if (url != null) {
+                metrics.resourceHit(FatJarMetrics.TIER_PARENT);
+                return url;
+            }
+            metrics.resourceMiss(FatJarMetrics.TIER_PARENT);
+        }
+        //
+        return null;
     }
 
     @Override
     public Enumeration<URL> getResources(String name) throws IOException {
-        synchronized (getLockObject(name)) {
-            LinkedHashSet result = new LinkedHashSet();
-            // 1. load by j2se
-            URL url = j2seClassLoader.getResource(name);
-            if (url != null) {
-                result.add(url);
+        LockObject lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                return getResources0(name);
             }
+        } finally {
+            releaseLock(name, lock);
+        }
+    }
 
-            // 2.0
-            ResourceEntry resource = findResourceInternal(name, name);
-            if (resource != null) {
-                result.add(resource.getUrl());
-            }
-            // 2.1
-            for (FatJarClassLoader subClassLoader : getSubClassLoaders()) {
-                if (subClassLoader.containsResource(name)) {
-                    url = subClassLoader.getResource(name);
-                    if (url != null) {
-                        result.add(url);
-                    }
-                }
-            }
+    private Enumeration<URL> getResources0(String name) throws IOException {
+        LinkedHashSet result = new LinkedHashSet();
+        // 1. load by j2se
+        URL url = j2seClassLoader.getResource(name);
+        if (url != null) {
+            result.add(url);
+        }
 
-            // 3.0 parent delegate
-            if (delegate && getParent() != null) {
-                Enumeration<URL> enumeration = getParent().getResources(name);
-                if (enumeration != null) {
-                    while (enumeration.hasMoreElements()) {
-                        result.add(enumeration.nextElement());
-                    }
+        // 2. every copy in the fat jar, nested jars and nested fat jars
+        result.addAll(Collections.list(findResources(name)));
+
+        // 3.0 parent delegate
+        if (delegate && getParent() != null) {
+            Enumeration<URL> enumeration = getParent().getResources(name);
+            if (enumeration != null) {
+                while (enumeration.hasMoreElements()) {
+                    result.add(enumeration.nextElement());
                 }
             }
-            // 3.1
-            if (child != null) {
-                Enumeration<URL> enumeration = invokeFindResources(child, name);
-                if (enumeration != null) {
-                    while (enumeration.hasMoreElements()) {
-                        result.add(enumeration.nextElement());
-                    }
+        }
+        // 3.1
+        if (child != null) {
+            Enumeration<URL> enumeration = invokeFindResources(child, name);
+            if (enumeration != null) {
+                while (enumeration.hasMoreElements()) {
+                    result.add(enumeration.nextElement());
                 }
             }
-            // 3.2
-            if (!delegate && getParent() != null) {
-                Enumeration<URL> enumeration = getParent().getResources(name);
-                if (enumeration != null) {
-                    while (enumeration.hasMoreElements()) {
-                        result.add(enumeration.nextElement());
-                    }
+        }
+        // 3.2
+        if (!delegate && getParent() != null) {
+            Enumeration<URL> enumeration = getParent().getResources(name);
+            if (enumeration != null) {
+                while (enumeration.hasMoreElements()) {
+                    result.add(enumeration.nextElement());
                 }
             }
-            //
-            return Collections.enumeration(result);
         }
+        //
+        return Collections.enumeration(result);
     }
 
     @Override
     public InputStream getResourceAsStream(String name) {
-        synchronized (getLockObject(name)) {
-            // 0. find in local cache
-            ResourceEntry resource = loadedResources.get(name);
-            if (resource != null) {
-                return new ByteArrayInputStream(resource.getBytes());
+        long start = System.nanoTime();
+        LockObject lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                return getResourceAsStream0(name);
             }
+        } finally {
+            releaseLock(name, lock);
+            metrics.resourceLookup(start);
+        }
+    }
 
-            // 1. load by j2se
-            InputStream inputStream = j2seClassLoader.getResourceAsStream(name);
+    private InputStream getResourceAsStream0(String name) {
+        InputStream inputStream;
+        // 0. find in local cache
+        ResourceEntry resource = loadedResources.get(name);
+        if (resource != null && resource.getData() != null) {
+            metrics.loadedResourcesHit();
+            return new FatJarArchive.ByteBufferInputStream(resource.getData());
+        }
+        if (resource != null && resource.getClazz() == null && resource.getStreamHandler() != null) {
+            inputStream = openResourceStream(resource, name);
             if (inputStream != null) {
+                metrics.loadedResourcesHit();
                 return inputStream;
             }
+        }
+        metrics.loadedResourcesMiss();
 
-            // 2.0
-            resource = findResourceInternal(name, name);
-            if (resource != null) {
-                return new ByteArrayInputStream(resource.getBytes());
-            }
-            // 2.1
-            for (FatJarClassLoader subClassLoader : getSubClassLoaders()) {
-                if (subClassLoader.containsResource(name)) {
-                    inputStream = subClassLoader.getResourceAsStream(name);
-                    if (inputStream != null) {
-                        return inputStream;
-                    }
-                }
-            }
+        // 1. load by j2se
+        inputStream = j2seClassLoader.getResourceAsStream(name);
+        if (inputStream != null) {
+            metrics.resourceHit(FatJarMetrics.TIER_J2SE);
+            return inputStream;
+        }
+        metrics.resourceMiss(FatJarMetrics.TIER_J2SE);
 
-            // 3.0 parent delegate
-            if (delegate && getParent() != null) {
-                inputStream = getParent().getResourceAsStream(name);
+        // 2.0
+        resource = findResourceInternal(name, name);
+        if (resource != null) {
+            inputStream = resource.getData() != null ? new FatJarArchive.ByteBufferInputStream(resource.getData())
+                : openResourceStream(resource, name);
+            if (inputStream != null) {
+                metrics.resourceHit(FatJarMetrics.TIER_LOCAL);
+                return inputStream;
+            }
+        }
+        metrics.resourceMiss(FatJarMetrics.TIER_LOCAL);
+        // 2.1
+        for (FatJarClassLoader subClassLoader : getSubClassLoaders()) {
+            if (subClassLoader.containsResource(name)) {
+                inputStream = subClassLoader.getResourceAsStream(name);
                 if (inputStream != null) {
+                    metrics.resourceHit(FatJarMetrics.TIER_SUB_LOADER);
                     return inputStream;
                 }
             }
+        }
+        if (!getSubClassLoaders().isEmpty()) {
+            metrics.resourceMiss(FatJarMetrics.TIER_SUB_LOADER);
+        }
 
-            // 3.1
-            if (child != null) {
-                URL url = invokeFindResource(child, name);
-                if (url != null) {
-                    try {
-                        inputStream = url.openStream();
-                        if (inputStream != null) {
-                            return inputStream;
-                        }
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+        // 3.0 parent delegate
+        if (delegate && getParent() != null) {
+            inputStream = getParent().getResourceAsStream(name);
+            if (inputStream != null) {
+                metrics.resourceHit(FatJarMetrics.TIER_PARENT);
+                return inputStream;
+            }
+            metrics.resourceMiss(FatJarMetrics.TIER_PARENT);
+        }
+
+        // 3.1
+        if (child != null) {
+            URL url = invokeFindResource(child, name);
+            if (url != null) {
+                try {
+                    inputStream = url.openStream();
+                    if (inputStream != null) {
+                        metrics.resourceHit(FatJarMetrics.TIER_CHILD);
+                        return inputStream;
                     }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
                 }
             }
-            // 3.2 parent delegate
-            if (!delegate && getParent() != null) {
-                inputStream = getParent().getResourceAsStream(name);
-                if (inputStream != null) {
-                    return inputStream;
-                }
+            metrics.resourceMiss(FatJarMetrics.TIER_CHILD);
+        }
+        // 3.2 parent delegate
+        if (!delegate && getParent() != null) {
+            inputStream = getParent().getResourceAsStream(name);
+            if (inputStream != null) {
+                metrics.resourceHit(FatJarMetrics.TIER_PARENT);
+                return inputStream;
+            }
+            metrics.resourceMiss(FatJarMetrics.TIER_PARENT);
+        }
+        //
+        return null;
+    }
+
+    /**
+     * @return the resource streamed from its jar, or null if it can't be read
+     */
+    private InputStream openResourceStream(ResourceEntry resource, String path) {
+        try {
+            return resource.getStreamHandler().openStream(path);
+        } catch (IOException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("[openResourceStream] read " + resource.getUrl() + " failed, " + e.getMessage());
             }
-            //
             return null;
         }
     }
@@ -507,6 +1032,10 @@ public class FatJarClassLoader extends URLClassLoader {
         if (filterResource(name)) {
             return false;
         }
+        FatJarEntryIndex index = this.entryIndex;
+        if (index != null) {
+            return index.findOwner(name, 0) == 0;
+        }
         if (fatJar != null && fatJar.getJarEntry(name) != null) {
             return true;
         } else {
@@ -522,13 +1051,16 @@ public class FatJarClassLoader extends URLClassLoader {
         }
     }
 
-    protected synchronized Class<?> findClassInternal(String name) throws ClassNotFoundException {
+    protected Class<?> findClassInternal(String name) throws ClassNotFoundException {
         ResourceEntry resource = loadedResources.get(name);
-        if (resource != null) {
+        if (resource != null && resource.getClazz() != null) {
             return resource.getClazz();
         }
-        String path = name.replace('.', '/') + CLASS_SUFFIX;
-        resource = findResourceInternal(name, path);
+        // read by a preloading thread ahead of demand
+        if (resource == null || resource.getData() == null) {
+            String path = name.replace('.', '/') + CLASS_SUFFIX;
+            resource = findResourceInternal(name, path);
+        }
         if (resource == null) {
             return null;
         } else {
@@ -571,8 +1103,14 @@ public class FatJarClassLoader extends URLClassLoader {
                     throw new RuntimeException(e);
                 }
             }
-            Class clazz = defineClass(name, resource.getBytes(), 0, resource.getBytes().length, codeSource);
+            Class clazz = defineClass(name, resource.getData(), codeSource);
             resource.setClazz(clazz);
+            metrics.classDefined();
+            // the bytecode lives in the class now, only keep what loadClass and getResource need
+            resource.setData(null);
+            resource.setManifest(null);
+            resource.setCertificates(null);
+            resource.setNestedJarEntryName(null);
             if (logger.isDebugEnabled()) {
                 logger.debug((this.toSimpleString() + "["//
                               + (fatJarClassLoaderParent == null ? "" : fatJarClassLoaderParent.toSimpleString()) //
@@ -587,64 +1125,218 @@ public class FatJarClassLoader extends URLClassLoader {
         return fatJarClassLoaderLevel + "-" + getClass().getSimpleName() + "@" + Integer.toHexString(hashCode());
     }
 
-    protected synchronized ResourceEntry findResourceInternal(String name, String path) {
+    protected ResourceEntry findResourceInternal(String name, String path) {
         if (filterResource(path)) {
             return null;
         }
-        if (notFoundResources.contains(name)) {
+        long hash = FatJarEntryIndex.hash(path);
+        FatJarBloomFilter filter = this.notFoundFilter;
+        if (filter != null && !filter.mightContain(hash)) {
+            notFoundFilterHits.incrementAndGet();
             return null;
         }
         if (this.fatJar != null) {
             ResourceEntry resource = findResourceInternal0(this.fatJar, name, path, null);
             if (resource != null) {
+                recordServed(name, path);
                 return resource;
             }
         }
         initNestedJars();
-        if (this.dependencyJars != null) {
-            for (Map.Entry<String, JarFile> entry : this.dependencyJars.entrySet()) {
-                ResourceEntry resource = findResourceInternal0(entry.getValue(), name, path, entry.getKey());
+        FatJarEntryIndex index = this.entryIndex;
+        // route to the owning nested jars directly
+        int ordinal = index.findOwner(hash, 1);
+        while (ordinal > 0) {
+            NestedJar nestedJar = this.indexedJars[ordinal];
+            if (nestedJar != null) {
+                ResourceEntry resource = findResourceInternal0(nestedJar, name, path);
                 if (resource != null) {
+                    recordServed(name, path);
                     return resource;
                 }
             }
+            ordinal = index.findOwner(hash, ordinal + 1);
+        }
+        if (filter != null) {
+            notFoundFilterFalsePositives.incrementAndGet();
         }
-        notFoundResources.add(name);
         return null;
     }
 
+    /**
+     * Unlike {@link #findResourceInternal(String, String)}, the entries are neither read nor cached, and no nested jar
+     * is opened: the index tells the owners of a name by its 64-bit hash, so an owner which hasn't been opened is
+     * trusted and its url opens the nested jar through this class loader only when it's opened itself.
+     *
+     * @return the urls of the entries named <code>path</code> in the fat jar and its plain nested jars, in the order
+     *         of their ordinals
+     */
+    protected List<URL> findResourcesInternal(String path) {
+        List<URL> urls = new ArrayList<>();
+        if (filterResource(path)) {
+            return urls;
+        }
+        long hash = FatJarEntryIndex.hash(path);
+        FatJarBloomFilter filter = this.notFoundFilter;
+        if (filter != null && !filter.mightContain(hash)) {
+            notFoundFilterHits.incrementAndGet();
+            return urls;
+        }
+        initNestedJars();
+        // all the owners are found by a single probe, the ones which are open are verified
+        for (int ordinal : this.entryIndex.findOwners(hash)) {
+            try {
+                if (ordinal == 0) {
+                    if (this.fatJar != null && this.fatJar.getJarEntry(path) != null) {
+                        urls.add(createResourceURL(this.urlStreamHandler, null, path));
+                    }
+                } else {
+                    NestedJar nestedJar = this.indexedJars[ordinal];
+                    if (nestedJar == null) {
+                        continue;
+                    }
+                    if (!nestedJar.isOpened()) {
+                        urls.add(createUnopenedResourceURL(nestedJar, path));
+                    } else if (containsEntry(nestedJar, path)) {
+                        urls.add(createResourceURL(nestedJar.getURLStreamHandler(), nestedJar.getName(), path));
+                    }
+                }
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (urls.isEmpty() && filter != null) {
+            notFoundFilterFalsePositives.incrementAndGet();
+        }
+        return urls;
+    }
+
+    /**
+     * @param handler the handler bound to the jar which holds the entry
+     * @param nestedJar null for an entry of the fat jar itself
+     */
+    private URL createResourceURL(FatJarResourceURLStreamHandler handler, String nestedJar, String path)
+                                                                                                        throws MalformedURLException {
+        // frameworks open directory urls as JarURLConnection to list them, and a security manager may forbid handlers
+        if (handler != null && securityManager == null && !path.endsWith("/")) {
+            return handler.createURL(path);
+        }
+        if (nestedJar == null) {
+            return new URL(JAR_PROTOCOL + getURL().toString() + SEPARATOR + path);
+        } else {
+            return new URL(JAR_PROTOCOL + getURL().toString() + SEPARATOR + nestedJar + SEPARATOR + path);
+        }
+    }
+
+    /**
+     * @return an url which opens the nested jar as a lookup would, in place or extracted, when it's opened
+     */
+    private URL createUnopenedResourceURL(NestedJar nestedJar, String path) throws MalformedURLException {
+        if (securityManager != null || path.endsWith("/")) {
+            return createResourceURL(null, nestedJar.getName(), path);
+        }
+        NestedJarURLStreamHandler handler = nestedJar.getUnopenedURLStreamHandler();
+        if (handler == null) {
+            // a handler created by a racing thread is as good
+            handler = new NestedJarURLStreamHandler(nestedJar);
+            nestedJar.setUnopenedURLStreamHandler(handler);
+        }
+        return handler.createURL(path);
+    }
+
+    private boolean containsEntry(NestedJar nestedJar, String path) {
+        try {
+            if (!openNestedJar(nestedJar)) {
+                return false;
+            }
+        } catch (IOException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("[containsEntry] open " + nestedJar.getName() + " of " + getURL() + " failed, "
+                            + e.getMessage());
+            }
+            return false;
+        }
+        if (nestedJar.getJarFile() != null) {
+            return nestedJar.getJarFile().getJarEntry(path) != null;
+        }
+        return nestedJar.getArchive().getEntry(path) >= 0;
+    }
+
+    private ResourceEntry findResourceInternal0(NestedJar nestedJar, String name, String path) {
+        try {
+            if (!openNestedJar(nestedJar)) {
+                return null;
+            }
+        } catch (IOException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("[findResourceInternal0] open " + nestedJar.getName() + " of " + getURL() + " failed, "
+                            + e.getMessage());
+            }
+            return null;
+        }
+        if (nestedJar.getJarFile() != null) {
+            return findResourceInternal0(nestedJar.getJarFile(), name, path, nestedJar.getName());
+        }
+        FatJarArchive archive = nestedJar.getArchive();
+        int entry = archive.getEntry(path);
+        if (entry < 0) {
+            return null;
+        }
+        ResourceEntry resource = new ResourceEntry();
+        try {
+            // a stored entry is read as a slice of the mapped fat jar, which costs no heap
+            if (archive.getMethod(entry) == ZipEntry.STORED
+                || keepsContent(name, path, archive.getSize(entry), nestedJar.getURLStreamHandler())) {
+                resource.setData(archive.getData(entry));
+                metrics.entryRead(archive.getCompressedSize(entry),
+                                  archive.getMethod(entry) == ZipEntry.STORED ? 0 : archive.getSize(entry));
+            } else {
+                resource.setStreamHandler(nestedJar.getURLStreamHandler());
+            }
+            resource.setManifest(nestedJar.getManifest());
+            resource.setUrl(createResourceURL(nestedJar.getURLStreamHandler(), nestedJar.getName(), path));
+            resource.setNestedJarEntryName(nestedJar.getName());
+        } catch (IOException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("[findResourceInternal0] read " + path + " from " + nestedJar.getName() + " failed, "
+                            + e.getMessage());
+            }
+            return null;
+        }
+        loadedResources.put(name, resource);
+        return resource;
+    }
+
     protected ResourceEntry findResourceInternal0(JarFile jarFile, String name, String path, String nestedJar) {
         JarEntry jarEntry = jarFile.getJarEntry(path);
         if (jarEntry == null) {
             return null;
         } else {
             ResourceEntry resource = new ResourceEntry();
+            FatJarResourceURLStreamHandler handler = nestedJar == null ? this.urlStreamHandler
+                : dependencyJars.get(nestedJar).getURLStreamHandler();
             InputStream inputStream = null;
             try {
-                inputStream = jarFile.getInputStream(jarEntry);
-                int conentLength = (int) jarEntry.getSize();
-                byte[] bytes = new byte[(int) conentLength];
-                int pos = 0;
-                while (true) {
-                    int next = inputStream.read(bytes, pos, bytes.length - pos);
-                    if (next <= 0) {
-                        break;
-                    }
-                    pos += next;
+                if (keepsContent(name, path, jarEntry.getSize(), handler)) {
+                    inputStream = jarFile.getInputStream(jarEntry);
+                    ByteBuffer data = readFully(inputStream, jarEntry.getSize());
+                    resource.setData(data);
+                    metrics.entryRead(jarEntry.getCompressedSize(),
+                                      jarEntry.getMethod() == ZipEntry.STORED ? 0 : data.remaining());
+                } else {
+                    resource.setStreamHandler(handler);
                 }
-                resource.setBytes(bytes);
                 resource.setManifest(jarFile.getManifest());
                 resource.setCertificates(jarEntry.getCertificates());
-                if (nestedJar == null) {
-                    resource.setUrl(new URL(JAR_PROTOCOL + getURL().toString() + SEPARATOR + path));
-                    resource.setNestedJarEntryName(null);
-                } else {
-                    resource.setUrl(new URL(JAR_PROTOCOL + getURL().toString() + SEPARATOR + nestedJar + SEPARATOR
-                                            + path));
-                    resource.setNestedJarEntryName(nestedJar);
-                }
+                resource.setUrl(createResourceURL(handler, nestedJar, path));
+                resource.setNestedJarEntryName(nestedJar);
             } catch (IOException e) {
-                // ignore
+                // nothing is cached, so that it's read again by the next lookup
+                if (logger.isWarnEnabled()) {
+                    logger.warn("[findResourceInternal0] read " + path + " from "
+                                + (nestedJar == null ? getURL() : nestedJar) + " failed, " + e.getMessage());
+                }
+                return null;
             } finally {
                 if (inputStream != null) {
                     try {
@@ -659,6 +1351,230 @@ public class FatJarClassLoader extends URLClassLoader {
         }
     }
 
+    /**
+     * Classes are always read to be defined, a resource is only read if it's small enough to be kept in memory,
+     * otherwise it's streamed from its jar by {@link #getResourceAsStream(String)}.
+     *
+     * @param size -1 if it's unknown
+     */
+    private boolean keepsContent(String name, String path, long size, FatJarResourceURLStreamHandler handler) {
+        if (!name.equals(path) || handler == null) {
+            return true;
+        }
+        return size >= 0 && size <= FatJarSystemConfig.getResourceCacheMaxSize();
+    }
+
+    /**
+     * @param size -1 if it's unknown
+     */
+    private static ByteBuffer readFully(InputStream inputStream, long size) throws IOException {
+        byte[] bytes = new byte[size >= 0 ? (int) size : 8192];
+        int pos = 0;
+        while (true) {
+            if (pos == bytes.length) {
+                if (size >= 0) {
+                    break;
+                }
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            int next = inputStream.read(bytes, pos, bytes.length - pos);
+            if (next <= 0) {
+                break;
+            }
+            pos += next;
+        }
+        return ByteBuffer.wrap(bytes, 0, pos);
+    }
+
+    private void recordServed(String name, String path) {
+        FatJarPreloadProfile profile = this.recordingProfile;
+        if (profile != null) {
+            // a class is looked up by its class name, a resource by its path
+            profile.record(name, !name.equals(path));
+        }
+    }
+
+    /**
+     * Records or replays the preload profile of this fat jar as {@link FatJarSystemConfig#getPreloadMode()} says.
+     * Recording lasts until {@link #finishPreloading()} is called or the JVM exits. Nested fat jars aren't profiled.
+     */
+    public synchronized void startPreloading() {
+        String mode = FatJarSystemConfig.getPreloadMode();
+        if (mode == null || fatJar == null) {
+            return;
+        }
+        File profileFile;
+        try {
+            profileFile = FatJarTempFileManager.getPreloadProfileFile(new File(fatJar.getName()));
+        } catch (IOException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("[startPreloading] " + e.getMessage());
+            }
+            return;
+        }
+        if ("replay".equals(mode) || ("auto".equals(mode) && profileFile.exists())) {
+            if (!profileFile.exists()) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("[startPreloading] " + profileFile + " hasn't been recorded");
+                }
+                return;
+            }
+            List<String> entries = FatJarPreloadProfile.load(profileFile);
+            if (entries != null) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("[startPreloading] replay " + entries.size() + " entries of " + profileFile);
+                }
+                FatJarPreloadProfile.replay(this, entries, FatJarSystemConfig.getPreloadThreads(),
+                                            FatJarSystemConfig.isPreloadDefineClasses());
+            }
+        } else if (recordingProfile == null) {
+            if (logger.isInfoEnabled()) {
+                logger.info("[startPreloading] record served classes and resources into " + profileFile);
+            }
+            FatJarPreloadProfile profile = new FatJarPreloadProfile(profileFile);
+            recordingShutdownHook = new FatJarPreloadProfile.ShutdownHook(profile);
+            Runtime.getRuntime().addShutdownHook(recordingShutdownHook);
+            recordingProfile = profile;
+        }
+    }
+
+    /**
+     * Stops recording and saves the preload profile, it does nothing if the profile isn't being recorded.
+     */
+    public synchronized void finishPreloading() {
+        FatJarPreloadProfile profile = this.recordingProfile;
+        if (profile != null) {
+            this.recordingProfile = null;
+            profile.save();
+            // the hook would keep the profile until the JVM exits
+            try {
+                Runtime.getRuntime().removeShutdownHook(recordingShutdownHook);
+            } catch (IllegalStateException e) {
+                // the JVM is exiting
+            }
+            recordingShutdownHook = null;
+        }
+    }
+
+    /**
+     * Reads a class or resource of a preload profile ahead of demand and keeps it in the cache, or defines the class.
+     */
+    void preload(String name, boolean isClass, boolean defineClass) throws ClassNotFoundException {
+        if (isClass && defineClass) {
+            loadClass(name, false);
+            return;
+        }
+        LockObject lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                if (loadedResources.containsKey(name) || (isClass && findLoadedClass(name) != null)) {
+                    return;
+                }
+                findResourceInternal(name, isClass ? name.replace('.', '/') + CLASS_SUFFIX : name);
+            }
+        } finally {
+            releaseLock(name, lock);
+        }
+    }
+
+    /**
+     * Drops a class which a replay has read but which hasn't been defined, once the replay is over, so that the bytes
+     * of the classes which the application never asks for aren't kept for the life of this class loader.
+     */
+    void dropPreloaded(String name) {
+        LockObject lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                ResourceEntry resource = loadedResources.get(name);
+                if (resource != null && resource.getClazz() == null) {
+                    loadedResources.remove(name);
+                }
+            }
+        } finally {
+            releaseLock(name, lock);
+        }
+    }
+
+    /**
+     * @return the number of lookups which were answered as absent by the negative cache
+     */
+    protected long getNotFoundFilterHits() {
+        return notFoundFilterHits.get();
+    }
+
+    /**
+     * @return the number of absent lookups which passed the negative cache
+     */
+    protected long getNotFoundFilterFalsePositives() {
+        return notFoundFilterFalsePositives.get();
+    }
+
+    /**
+     * @return the number of nested jars which have been read in place or extracted
+     */
+    int getOpenedNestedJarCount() {
+        return openedNestedJarCount.get();
+    }
+
+    /**
+     * @return the metrics which are registered as an MBean if {@link FatJarSystemConfig#isJmxEnabled()}
+     */
+    protected FatJarMetricsMXBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Unregisters the MBean and closes the URLs of this class loader. The resource urls which have been handed out
+     * open their jars again from then on.
+     */
+    @Override
+    public void close() throws IOException {
+        metrics.unregister();
+        closed = true;
+        if (urlStreamHandler != null) {
+            urlStreamHandler.close();
+        }
+        if (initedNestedJars) {
+            for (NestedJar nestedJar : dependencyJars.values()) {
+                synchronized (nestedJar) {
+                    if (nestedJar.getURLStreamHandler() != null) {
+                        nestedJar.getURLStreamHandler().close();
+                    }
+                }
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * @return the number of nested jars which aren't fat jars
+     */
+    protected int getNestedJarCount() {
+        initNestedJars();
+        return dependencyJars.size();
+    }
+
+    /**
+     * @return the number of nested jars which aren't fat jars, or 0 if they haven't been listed yet
+     */
+    int getListedNestedJarCount() {
+        return initedNestedJars ? dependencyJars.size() : 0;
+    }
+
+    /**
+     * @return the number of nested jars which have never been opened, because no lookup has been routed to them
+     */
+    protected int getUnopenedNestedJarCount() {
+        initNestedJars();
+        int count = 0;
+        for (NestedJar nestedJar : dependencyJars.values()) {
+            if (!nestedJar.isOpened()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     protected ClassLoader getChild() {
         return child;
     }
@@ -671,13 +1587,33 @@ public class FatJarClassLoader extends URLClassLoader {
         return useSelfAsChildrensParent;
     }
 
-    private Object getLockObject(String className) {
-        Object newLock = new Object();
-        Object lock = lockMap.putIfAbsent(className, newLock);
-        if (lock == null) {
-            return newLock;
-        } else {
-            return lock;
+    private LockObject acquireLock(String name) {
+        while (true) {
+            LockObject lock = lockMap.get(name);
+            if (lock == null) {
+                LockObject newLock = new LockObject();
+                lock = lockMap.putIfAbsent(name, newLock);
+                if (lock == null) {
+                    lock = newLock;
+                }
+            }
+            synchronized (lock) {
+                // a released lock has been removed from lockMap, retry with a new one
+                if (lock.holders >= 0) {
+                    lock.holders++;
+                    return lock;
+                }
+            }
+        }
+    }
+
+    private void releaseLock(String name, LockObject lock) {
+        synchronized (lock) {
+            lock.holders--;
+            if (lock.holders == 0) {
+                lock.holders = -1;
+                lockMap.remove(name, lock);
+            }
         }
     }
 
@@ -685,11 +1621,11 @@ public class FatJarClassLoader extends URLClassLoader {
         if (classLoader == null) {
             return null;
         }
-        Method method = FatJarReflectionUtils.getMethod(classLoader.getClass(), "loadClass", String.class,
-                                                        boolean.class);
+        MethodHandle handle = FatJarDelegationHandles.of(classLoader.getClass()).loadClass;
         try {
-            return (Class<?>) method.invoke(classLoader, name, resolve);
-        } catch (Exception e) {
+            Object clazz = handle.invokeExact((Object) classLoader, (Object) name, resolve);
+            return (Class<?>) clazz;
+        } catch (Throwable e) {
             Throwable temp = e;
             while (temp != null) {
                 if (temp instanceof ClassNotFoundException) {
@@ -706,10 +1642,11 @@ public class FatJarClassLoader extends URLClassLoader {
         if (classLoader == null) {
             return null;
         }
-        Method method = FatJarReflectionUtils.getMethod(classLoader.getClass(), "findClass", String.class);
+        MethodHandle handle = FatJarDelegationHandles.of(classLoader.getClass()).findClass;
         try {
-            return (Class<?>) method.invoke(classLoader, name);
-        } catch (Exception e) {
+            Object clazz = handle.invokeExact((Object) classLoader, (Object) name);
+            return (Class<?>) clazz;
+        } catch (Throwable e) {
             Throwable temp = e;
             while (temp != null) {
                 if (temp instanceof ClassNotFoundException) {
@@ -733,10 +1670,11 @@ public class FatJarClassLoader extends URLClassLoader {
         if (classLoader == null) {
             return null;
         }
-        Method method = FatJarReflectionUtils.getMethod(classLoader.getClass(), "findResource", String.class);
+        MethodHandle handle = FatJarDelegationHandles.of(classLoader.getClass()).findResource;
         try {
-            return (URL) method.invoke(classLoader, name);
-        } catch (Exception e) {
+            Object url = handle.invokeExact((Object) classLoader, (Object) name);
+            return (URL) url;
+        } catch (Throwable e) {
             throw new RuntimeException(e);
         }
     }
@@ -745,29 +1683,210 @@ public class FatJarClassLoader extends URLClassLoader {
         if (classLoader == null) {
             return null;
         }
-        Method method = FatJarReflectionUtils.getMethod(classLoader.getClass(), "findResources", String.class);
+        MethodHandle handle = FatJarDelegationHandles.of(classLoader.getClass()).findResources;
         try {
-            return (Enumeration<URL>) method.invoke(classLoader, name);
-        } catch (Exception e) {
+            Object urls = handle.invokeExact((Object) classLoader, (Object) name);
+            return (Enumeration<URL>) urls;
+        } catch (Throwable e) {
             throw new RuntimeException(e);
         }
     }
 
-    private class ResourceEntry {
+    /**
+     * The handler of the resource urls of a nested jar which hadn't been opened when they were handed out. Opening
+     * such an url opens the nested jar through this class loader and is then served by its
+     * {@link FatJarResourceURLStreamHandler}, the url is opened as a plain <code>jar:</code> url if the nested jar
+     * can't be opened or this class loader has been closed.
+     */
+    private class NestedJarURLStreamHandler extends FatJarURLStreamHandler {
+
+        private final NestedJar nestedJar;
+        // e.g. file:/a/b.jar!/lib/c.jar!/
+        private final String    prefix;
+
+        public NestedJarURLStreamHandler(NestedJar nestedJar) {
+            this.nestedJar = nestedJar;
+            this.prefix = getURL() + SEPARATOR + nestedJar.getName() + SEPARATOR;
+        }
+
+        public URL createURL(String path) throws MalformedURLException {
+            return new URL("jar", "", -1, prefix + path, this);
+        }
+
+        @Override
+        protected URLConnection openConnection(URL u) throws IOException {
+            if (!closed && u.getFile().startsWith(prefix)) {
+                try {
+                    if (openNestedJar(nestedJar)) {
+                        return nestedJar.getURLStreamHandler().openConnection(u);
+                    }
+                } catch (IOException e) {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("[openConnection] open " + nestedJar.getName() + " of " + getURL() + " failed, "
+                                    + e.getMessage());
+                    }
+                }
+            }
+            return super.openConnection(u);
+        }
+    }
 
-        private byte[]       bytes;
-        private URL          url;
-        private Class<?>     clazz;
-        private Manifest     manifest;
-        public Certificate[] certificates;
-        private String       nestedJarEntryName;
+    /**
+     * A nested jar which is opened on demand, the fields below <code>opened</code> are published by it.
+     */
+    private static class NestedJar {
+
+        private final JarEntry                     jarEntry;
+        // extracted into a temporary file
+        private JarFile                            jarFile;
+        // read in place from the mapped fat jar
+        private FatJarArchive                      archive;
+        private Manifest                           manifest;
+        private FatJarResourceURLStreamHandler     urlStreamHandler;
+        private boolean                            failed;
+        private volatile boolean                   opened;
+        // opens the resource urls handed out before it's opened
+        private volatile NestedJarURLStreamHandler unopenedURLStreamHandler;
+
+        public NestedJar(JarEntry jarEntry) {
+            this.jarEntry = jarEntry;
+        }
 
-        public byte[] getBytes() {
-            return bytes;
+        public String getName() {
+            return jarEntry.getName();
         }
 
-        public void setBytes(byte[] bytes) {
-            this.bytes = bytes;
+        public JarEntry getJarEntry() {
+            return jarEntry;
+        }
+
+        public boolean isOpened() {
+            return opened;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        public void setJarFile(JarFile jarFile, Manifest manifest, FatJarResourceURLStreamHandler urlStreamHandler) {
+            this.jarFile = jarFile;
+            this.manifest = manifest;
+            this.urlStreamHandler = urlStreamHandler;
+            this.opened = true;
+        }
+
+        public void setArchive(FatJarArchive archive, Manifest manifest,
+                               FatJarResourceURLStreamHandler urlStreamHandler) {
+            this.archive = archive;
+            this.manifest = manifest;
+            this.urlStreamHandler = urlStreamHandler;
+            this.opened = true;
+        }
+
+        public void setFailed() {
+            this.failed = true;
+            this.opened = true;
+        }
+
+        public JarFile getJarFile() {
+            return jarFile;
+        }
+
+        public FatJarArchive getArchive() {
+            return archive;
+        }
+
+        public Manifest getManifest() {
+            return manifest;
+        }
+
+        public FatJarResourceURLStreamHandler getURLStreamHandler() {
+            return urlStreamHandler;
+        }
+
+        public NestedJarURLStreamHandler getUnopenedURLStreamHandler() {
+            return unopenedURLStreamHandler;
+        }
+
+        public void setUnopenedURLStreamHandler(NestedJarURLStreamHandler unopenedURLStreamHandler) {
+            this.unopenedURLStreamHandler = unopenedURLStreamHandler;
+        }
+    }
+
+    private static class PreparedJar {
+
+        private final NestedJar    nestedJar;
+        // extracted jar of a nested fat jar
+        private final JarFile      fatJarFile;
+        private final List<String> entryNames;
+
+        public PreparedJar(NestedJar nestedJar, JarFile fatJarFile, List<String> entryNames) {
+            this.nestedJar = nestedJar;
+            this.fatJarFile = fatJarFile;
+            this.entryNames = entryNames;
+        }
+
+        public NestedJar getNestedJar() {
+            return nestedJar;
+        }
+
+        public JarFile getFatJarFile() {
+            return fatJarFile;
+        }
+
+        public List<String> getEntryNames() {
+            return entryNames;
+        }
+    }
+
+    private class NestedJarPreparer implements Callable<PreparedJar> {
+
+        private final JarEntry jarEntry;
+
+        public NestedJarPreparer(JarEntry jarEntry) {
+            this.jarEntry = jarEntry;
+        }
+
+        @Override
+        public PreparedJar call() throws Exception {
+            return prepareNestedJar(jarEntry);
+        }
+    }
+
+    private static class NestedJarThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "fatjar-nested-jar-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static class LockObject {
+
+        private int holders = 0;
+    }
+
+    private class ResourceEntry {
+
+        private ByteBuffer                     data;
+        private URL                            url;
+        private Class<?>                       clazz;
+        private Manifest                       manifest;
+        public Certificate[]                   certificates;
+        private String                         nestedJarEntryName;
+        // streams a resource whose content isn't kept
+        private FatJarResourceURLStreamHandler streamHandler;
+
+        public ByteBuffer getData() {
+            return data;
+        }
+
+        public void setData(ByteBuffer data) {
+            this.data = data;
         }
 
         public URL getUrl() {
@@ -809,6 +1928,14 @@ public class FatJarClassLoader extends URLClassLoader {
         public void setNestedJarEntryName(String nestedJarEntryName) {
             this.nestedJarEntryName = nestedJarEntryName;
         }
+
+        public FatJarResourceURLStreamHandler getStreamHandler() {
+            return streamHandler;
+        }
+
+        public void setStreamHandler(FatJarResourceURLStreamHandler streamHandler) {
+            this.streamHandler = streamHandler;
+        }
     }
 
     static boolean isFatJar(Manifest manifest) {
@@ -41,6 +41,9 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
 
     private List<FatJarClassLoader> fatJarClassLoaders = new ArrayList<>();
 
+    private final FatJarMetrics     metrics            = new FatJarMetrics(Arrays.toString(getURLs()),
+                                                                            getClass().getSimpleName(), null);
+
     static {
         if (logger.isDebugEnabled()) {
             logger.debug("FatJarClassLoaderProxy is loaded by " + FatJarClassLoaderProxy.class.getClassLoader());
@@ -114,6 +117,24 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
         }
     }
 
+    /**
+     * @see FatJarClassLoader#startPreloading()
+     */
+    public void startPreloading() {
+        for (FatJarClassLoader fatJarClassLoader : fatJarClassLoaders) {
+            fatJarClassLoader.startPreloading();
+        }
+    }
+
+    /**
+     * @see FatJarClassLoader#finishPreloading()
+     */
+    public void finishPreloading() {
+        for (FatJarClassLoader fatJarClassLoader : fatJarClassLoaders) {
+            fatJarClassLoader.finishPreloading();
+        }
+    }
+
     private List<File> listJarFiles(URL url) {
         List<File> jarFiles = new ArrayList<>();
         File filePath = new File(url.getFile());
@@ -178,19 +199,30 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
     @Override
     public Enumeration<URL> findResources(String name) throws IOException {
         LinkedHashSet<URL> result = new LinkedHashSet<URL>();
+        // copies in nested jars count as well, a fat jar without one of its own adds nothing
         for (FatJarClassLoader internalFatJarClassLoader : fatJarClassLoaders) {
-            if (internalFatJarClassLoader.containsResource(name)) {
-                Enumeration<URL> enumeration = internalFatJarClassLoader.findResources(name);
-                if (enumeration != null) {
-                    while (enumeration.hasMoreElements()) {
-                        result.add(enumeration.nextElement());
-                    }
+            Enumeration<URL> enumeration = internalFatJarClassLoader.findResources(name);
+            if (enumeration != null) {
+                while (enumeration.hasMoreElements()) {
+                    result.add(enumeration.nextElement());
                 }
             }
         }
         return Collections.enumeration(result);
     }
 
+    /**
+     * @see FatJarClassLoader#scanEntries(String, FatJarEntryVisitor)
+     */
+    public boolean scanEntries(String prefix, FatJarEntryVisitor visitor) throws IOException {
+        for (FatJarClassLoader internalFatJarClassLoader : fatJarClassLoaders) {
+            if (!internalFatJarClassLoader.scanEntries(prefix, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
         for (FatJarClassLoader internalFatJarClassLoader : fatJarClassLoaders) {
@@ -211,11 +243,21 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
 
     @Override
     protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        long start = System.nanoTime();
+        try {
+            return loadClass0(name, resolve);
+        } finally {
+            metrics.classLookup(start);
+        }
+    }
+
+    private Class<?> loadClass0(String name, boolean resolve) throws ClassNotFoundException {
         Class<?> clazz = null;
         // 0. load by j2se
         try {
             clazz = j2seClassLoader.loadClass(name);
             if (clazz != null) {
+                metrics.classHit(FatJarMetrics.TIER_J2SE);
                 if (resolve) {
                     resolveClass(clazz);
                 }
@@ -224,16 +266,19 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
         } catch (ClassNotFoundException e) {
             // ignore;
         }
+        metrics.classMiss(FatJarMetrics.TIER_J2SE);
 
         // 1. parent delegate
         if (delegate && getParent() != null) {
             clazz = FatJarClassLoader.invokeLoadClass(getParent(), name, resolve);
             if (clazz != null) {
+                metrics.classHit(FatJarMetrics.TIER_PARENT);
                 if (resolve) {
                     resolveClass(clazz);
                 }
                 return clazz;
             }
+            metrics.classMiss(FatJarMetrics.TIER_PARENT);
         }
         // 2.
         for (FatJarClassLoader fatJarClassLoader : fatJarClassLoaders) {
@@ -241,6 +286,7 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
                 try {
                     clazz = fatJarClassLoader.loadClass(name, resolve);
                     if (clazz != null) {
+                        metrics.classHit(FatJarMetrics.TIER_LOCAL);
                         if (resolve) {
                             resolveClass(clazz);
                         }
@@ -251,15 +297,18 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
                 }
             }
         }
+        metrics.classMiss(FatJarMetrics.TIER_LOCAL);
         // 3. parent delegate
         if (!delegate && getParent() != null) {
             clazz = FatJarClassLoader.invokeLoadClass(getParent(), name, resolve);
             if (clazz != null) {
+                metrics.classHit(FatJarMetrics.TIER_PARENT);
                 if (resolve) {
                     resolveClass(clazz);
                 }
                 return clazz;
             }
+            metrics.classMiss(FatJarMetrics.TIER_PARENT);
         }
         //
         return null;
@@ -267,25 +316,40 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
 
     @Override
     public URL getResource(String name) {
+        long start = System.nanoTime();
+        try {
+            return getResource0(name);
+        } finally {
+            metrics.resourceLookup(start);
+        }
+    }
+
+    private URL getResource0(String name) {
         if (delegate && getParent() != null) {
             URL url = getParent().getResource(name);
             if (url != null) {
+                metrics.resourceHit(FatJarMetrics.TIER_PARENT);
                 return url;
             }
+            metrics.resourceMiss(FatJarMetrics.TIER_PARENT);
         }
         for (FatJarClassLoader internalFatJarClassLoader : fatJarClassLoaders) {
             if (internalFatJarClassLoader.containsResource(name)) {
                 URL url = internalFatJarClassLoader.getResource(name);
                 if (url != null) {
+                    metrics.resourceHit(FatJarMetrics.TIER_LOCAL);
                     return url;
                 }
             }
         }
+        metrics.resourceMiss(FatJarMetrics.TIER_LOCAL);
         if (!delegate && getParent() != null) {
             URL url = getParent().getResource(name);
             if (url != null) {
+                metrics.resourceHit(FatJarMetrics.TIER_PARENT);
                 return url;
             }
+            metrics.resourceMiss(FatJarMetrics.TIER_PARENT);
         }
         return null;
     }
@@ -301,13 +365,12 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
                 }
             }
         }
+        // copies in nested jars count as well, a fat jar without one of its own adds nothing
         for (FatJarClassLoader internalFatJarClassLoader : fatJarClassLoaders) {
-            if (internalFatJarClassLoader.containsResource(name)) {
-                Enumeration<URL> enumeration = internalFatJarClassLoader.findResources(name);
-                if (enumeration != null) {
-                    while (enumeration.hasMoreElements()) {
-                        result.add(enumeration.nextElement());
-                    }
+            Enumeration<URL> enumeration = internalFatJarClassLoader.findResources(name);
+            if (enumeration != null) {
+                while (enumeration.hasMoreElements()) {
+                    result.add(enumeration.nextElement());
                 }
             }
         }
@@ -324,25 +387,40 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
 
     @Override
     public InputStream getResourceAsStream(String name) {
+        long start = System.nanoTime();
+        try {
+            return getResourceAsStream0(name);
+        } finally {
+            metrics.resourceLookup(start);
+        }
+    }
+
+    private InputStream getResourceAsStream0(String name) {
         if (delegate && getParent() != null) {
             InputStream inputStream = getParent().getResourceAsStream(name);
             if (inputStream != null) {
+                metrics.resourceHit(FatJarMetrics.TIER_PARENT);
                 return inputStream;
             }
+            metrics.resourceMiss(FatJarMetrics.TIER_PARENT);
         }
         for (FatJarClassLoader internalFatJarClassLoader : fatJarClassLoaders) {
             if (internalFatJarClassLoader.containsResource(name)) {
                 InputStream inputStream = internalFatJarClassLoader.getResourceAsStream(name);
                 if (inputStream != null) {
+                    metrics.resourceHit(FatJarMetrics.TIER_LOCAL);
                     return inputStream;
                 }
             }
         }
+        metrics.resourceMiss(FatJarMetrics.TIER_LOCAL);
         if (!delegate && getParent() != null) {
             InputStream inputStream = getParent().getResourceAsStream(name);
             if (inputStream != null) {
+                metrics.resourceHit(FatJarMetrics.TIER_PARENT);
                 return inputStream;
             }
+            metrics.resourceMiss(FatJarMetrics.TIER_PARENT);
         }
         return null;
     }
@@ -353,6 +431,22 @@ public class FatJarClassLoaderProxy extends URLClassLoader {
         initOneURL(url);
     }
 
+    /**
+     * @return the metrics of this proxy, the fat jars it routes to have their own
+     */
+    protected FatJarMetricsMXBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Unregisters the MBean and closes the URLs of this class loader.
+     */
+    @Override
+    public void close() throws IOException {
+        metrics.unregister();
+        super.close();
+    }
+
     protected ClassLoader getChild() {
         return child;
     }
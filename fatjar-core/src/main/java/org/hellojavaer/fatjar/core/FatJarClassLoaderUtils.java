@@ -268,6 +268,22 @@ public class FatJarClassLoaderUtils {
                                         + targetClassLoader.getClass().getName());
     }
 
+    /**
+     * Applies a new value of the system property <code>fatjar.log.level</code>, which is otherwise read once.
+     */
+    public static void reloadLogLevel() {
+        Logger.reloadLevel();
+    }
+
+    /**
+     * Ends the background log writer of <code>fatjar.log.async</code>, which otherwise holds the class loader of
+     * fatjar-core until the JVM exits. It's called when that class loader is discarded, e.g. by
+     * {@link org.hellojavaer.fatjar.core.boot.FatJarServletContextListener} when a web application is undeployed.
+     */
+    public static void stopLogWriter() {
+        Logger.stopWriter();
+    }
+
     public static void injectFatJarUrlProtocolHandler() {
         if (!injectedFatJarUrlProtocolHandler) {
             synchronized (FatJarClassLoaderUtils.class) {
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * The methods a {@link FatJarClassLoader} calls on its parent and child class loaders, resolved once per class loader
+ * class. A delegation hop is then a {@link ClassValue} lookup and an <code>invokeExact</code>, instead of two map
+ * lookups, a <code>setAccessible</code> and a {@link java.lang.reflect.Method#invoke(Object, Object...)}.
+ */
+class FatJarDelegationHandles {
+
+    private static final ClassValue<FatJarDelegationHandles> handles = new ClassValue<FatJarDelegationHandles>() {
+
+        @Override
+        protected FatJarDelegationHandles computeValue(Class<?> type) {
+            return new FatJarDelegationHandles(type);
+        }
+    };
+
+    // (Object,Object,boolean)Object
+    final MethodHandle loadClass;
+    // (Object,Object)Object
+    final MethodHandle findClass;
+    // (Object,Object)Object
+    final MethodHandle findResource;
+    // (Object,Object)Object
+    final MethodHandle findResources;
+
+    private FatJarDelegationHandles(Class<?> clazz) {
+        this.loadClass = FatJarReflectionUtils.getMethodHandle(clazz, "loadClass", String.class, boolean.class);
+        this.findClass = FatJarReflectionUtils.getMethodHandle(clazz, "findClass", String.class);
+        this.findResource = FatJarReflectionUtils.getMethodHandle(clazz, "findResource", String.class);
+        this.findResources = FatJarReflectionUtils.getMethodHandle(clazz, "findResources", String.class);
+    }
+
+    static FatJarDelegationHandles of(Class<? extends ClassLoader> clazz) {
+        return handles.get(clazz);
+    }
+}
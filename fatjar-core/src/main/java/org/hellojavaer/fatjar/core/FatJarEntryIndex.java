@@ -0,0 +1,362 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry index of a fat jar, either written by fatjar-maven-plugin as {@link #INDEX_ENTRY_NAME} or built in memory by
+ * {@link Builder} for fat jars which don't contain one.
+ *
+ * <p>
+ * Ordinal 0 is the fat jar itself and ordinal 1..n are its nested jars in packaging order. A lookup hashes the entry
+ * name and probes a minimal perfect hash table (loaded index) or a linear probing table (built index), so a name which
+ * is absent from every jar costs a single probe. Only hashes are stored, so a hit must be verified against the owning
+ * jar.
+ */
+class FatJarEntryIndex {
+
+    static final String        INDEX_ENTRY_NAME = "META-INF/fatjar.idx";
+
+    private static final int   MAGIC            = 0x464a4958;          // FJIX
+    private static final int   VERSION          = 1;
+
+    private static final int   EMPTY            = Integer.MIN_VALUE;
+    private static final int[] NO_OWNERS        = new int[0];
+
+    private String[]           jarNames;
+    private boolean[]          fatJarFlags;
+    private long[]             jarOffsets;
+    private long[]             jarSizes;
+    private long[]             jarCrcs;
+
+    // perfect hash table if displacements isn't null, otherwise linear probing table
+    private int                bucketCount;
+    private int[]              displacements;
+    private long[]             keys;
+    // value >= 0: the only owner; value < 0: -(offset + 1) of [count, owner...] in multiOwners
+    private int[]              values;
+    private int[]              multiOwners;
+
+    private FatJarEntryIndex() {
+    }
+
+    public static FatJarEntryIndex load(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("invalid fat jar index");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported fat jar index version " + version);
+        }
+        FatJarEntryIndex index = new FatJarEntryIndex();
+        int jarCount = in.readInt();
+        index.jarNames = new String[jarCount + 1];
+        index.fatJarFlags = new boolean[jarCount + 1];
+        index.jarOffsets = new long[jarCount + 1];
+        index.jarSizes = new long[jarCount + 1];
+        index.jarCrcs = new long[jarCount + 1];
+        for (int i = 1; i <= jarCount; i++) {
+            index.jarNames[i] = in.readUTF();
+            index.fatJarFlags[i] = in.readBoolean();
+            index.jarOffsets[i] = in.readLong();
+            index.jarSizes[i] = in.readLong();
+            index.jarCrcs[i] = in.readLong();
+        }
+        int size = in.readInt();
+        index.bucketCount = in.readInt();
+        index.displacements = new int[index.bucketCount];
+        for (int i = 0; i < index.bucketCount; i++) {
+            index.displacements[i] = in.readInt();
+        }
+        index.keys = new long[size];
+        index.values = new int[size];
+        for (int i = 0; i < size; i++) {
+            index.keys[i] = in.readLong();
+            index.values[i] = in.readInt();
+        }
+        int multiSize = in.readInt();
+        index.multiOwners = new int[multiSize];
+        for (int i = 0; i < multiSize; i++) {
+            index.multiOwners[i] = in.readInt();
+        }
+        return index;
+    }
+
+    /**
+     * @return the number of nested jars
+     */
+    public int getJarCount() {
+        return jarNames.length - 1;
+    }
+
+    public String getJarName(int ordinal) {
+        return jarNames[ordinal];
+    }
+
+    public boolean isFatJar(int ordinal) {
+        return fatJarFlags[ordinal];
+    }
+
+    public long getJarOffset(int ordinal) {
+        return jarOffsets[ordinal];
+    }
+
+    public long getJarSize(int ordinal) {
+        return jarSizes[ordinal];
+    }
+
+    public long getJarCrc(int ordinal) {
+        return jarCrcs[ordinal];
+    }
+
+    /**
+     * @return the smallest ordinal which is not less than <code>fromOrdinal</code> and owns <code>name</code>, or -1
+     */
+    public int findOwner(String name, int fromOrdinal) {
+        return findOwner(hash(name), fromOrdinal);
+    }
+
+    /**
+     * @param hash the hash of an entry name, see {@link #hash(String)}
+     */
+    public int findOwner(long hash, int fromOrdinal) {
+        int value = lookup(hash);
+        if (value == EMPTY) {
+            return -1;
+        }
+        if (value >= 0) {
+            return value >= fromOrdinal ? value : -1;
+        }
+        int offset = -value - 1;
+        int count = multiOwners[offset];
+        for (int i = offset + 1; i <= offset + count; i++) {
+            if (multiOwners[i] >= fromOrdinal) {
+                return multiOwners[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return every ordinal which owns the entry in ascending order, an empty array if none
+     */
+    public int[] findOwners(long hash) {
+        int value = lookup(hash);
+        if (value == EMPTY) {
+            return NO_OWNERS;
+        }
+        if (value >= 0) {
+            return new int[] { value };
+        }
+        int offset = -value - 1;
+        return Arrays.copyOfRange(multiOwners, offset + 1, offset + 1 + multiOwners[offset]);
+    }
+
+    public FatJarBloomFilter buildBloomFilter() {
+        int count = 0;
+        for (int value : values) {
+            if (value != EMPTY) {
+                count++;
+            }
+        }
+        FatJarBloomFilter bloomFilter = new FatJarBloomFilter(count);
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != EMPTY) {
+                bloomFilter.add(keys[i]);
+            }
+        }
+        return bloomFilter;
+    }
+
+    private int lookup(long hash) {
+        int size = keys.length;
+        if (size == 0) {
+            return EMPTY;
+        }
+        if (displacements != null) {
+            int slot = slot(hash, displacements[bucket(hash, bucketCount)], size);
+            return keys[slot] == hash ? values[slot] : EMPTY;
+        } else {
+            int mask = size - 1;
+            for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+                if (values[slot] == EMPTY || keys[slot] == hash) {
+                    return values[slot];
+                }
+            }
+        }
+    }
+
+    static int bucket(long hash, int bucketCount) {
+        return (int) ((hash >>> 32) % bucketCount);
+    }
+
+    static int slot(long hash, int displacement, int size) {
+        return (int) ((mix(hash + displacement * 0x9e3779b97f4a7c15L) >>> 1) % size);
+    }
+
+    static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Builds a linear probing index in memory. Entries must be added in ascending order of ordinals.
+     */
+    static class Builder {
+
+        private static final int  INITIAL_CAPACITY = 1024;
+
+        private final List<String> jarNames         = new ArrayList<>();
+        private final List<Long>   jarSizes         = new ArrayList<>();
+        private final List<Long>   jarCrcs          = new ArrayList<>();
+
+        private long[]             keys             = new long[INITIAL_CAPACITY];
+        private int[]              values           = newValues(INITIAL_CAPACITY);
+        private int                size             = 0;
+        // value < 0: -(index + 1) in multiOwners, element: [count, owner...]
+        private final List<int[]>  multiOwners      = new ArrayList<>();
+
+        public Builder() {
+            jarNames.add(null);
+            jarSizes.add(-1L);
+            jarCrcs.add(-1L);
+        }
+
+        /**
+         * @return the ordinal of the nested jar, starting from 1
+         */
+        public int addJar(String name, long size, long crc) {
+            jarNames.add(name);
+            jarSizes.add(size);
+            jarCrcs.add(crc);
+            return jarNames.size() - 1;
+        }
+
+        public void addEntry(String name, int ordinal) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+            }
+            long hash = hash(name);
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (values[slot] != EMPTY && keys[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            int value = values[slot];
+            if (value == EMPTY) {
+                keys[slot] = hash;
+                values[slot] = ordinal;
+                size++;
+            } else if (value >= 0) {
+                if (value != ordinal) {
+                    multiOwners.add(new int[] { 2, value, ordinal });
+                    values[slot] = -multiOwners.size();
+                }
+            } else {
+                int index = -value - 1;
+                int[] owners = multiOwners.get(index);
+                int count = owners[0];
+                if (owners[count] != ordinal) {
+                    if (count + 1 == owners.length) {
+                        owners = Arrays.copyOf(owners, owners.length * 2);
+                        multiOwners.set(index, owners);
+                    }
+                    owners[count + 1] = ordinal;
+                    owners[0] = count + 1;
+                }
+            }
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = newValues(capacity);
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != EMPTY) {
+                    int slot = (int) oldKeys[i] & mask;
+                    while (values[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int[] newValues(int capacity) {
+            int[] values = new int[capacity];
+            Arrays.fill(values, EMPTY);
+            return values;
+        }
+
+        public FatJarEntryIndex build() {
+            FatJarEntryIndex index = new FatJarEntryIndex();
+            int jarCount = jarNames.size();
+            index.jarNames = jarNames.toArray(new String[jarCount]);
+            index.fatJarFlags = new boolean[jarCount];
+            index.jarOffsets = new long[jarCount];
+            index.jarSizes = new long[jarCount];
+            index.jarCrcs = new long[jarCount];
+            for (int i = 0; i < jarCount; i++) {
+                index.jarOffsets[i] = -1;
+                index.jarSizes[i] = jarSizes.get(i);
+                index.jarCrcs[i] = jarCrcs.get(i);
+            }
+            // flatten owner lists
+            int[] offsets = new int[multiOwners.size()];
+            int multiSize = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = multiSize;
+                multiSize += multiOwners.get(i)[0] + 1;
+            }
+            index.multiOwners = new int[multiSize];
+            for (int i = 0; i < offsets.length; i++) {
+                int[] owners = multiOwners.get(i);
+                System.arraycopy(owners, 0, index.multiOwners, offsets[i], owners[0] + 1);
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != EMPTY && values[i] < 0) {
+                    values[i] = -offsets[-values[i] - 1] - 1;
+                }
+            }
+            index.keys = keys;
+            index.values = values;
+            return index;
+        }
+    }
+}
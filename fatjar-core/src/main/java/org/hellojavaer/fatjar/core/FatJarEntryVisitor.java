@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.net.URL;
+
+/**
+ * Receives the entries found by {@link FatJarClassLoader#scanEntries(String, FatJarEntryVisitor)}, e.g. to find the
+ * classes of a package without opening a url per entry.
+ */
+public interface FatJarEntryVisitor {
+
+    /**
+     * @param jarURL the jar which owns the entry, <code>file:/a/b.jar</code> for the fat jar itself or
+     *            <code>file:/a/b.jar!/lib/c.jar</code> for a nested jar, the same instance for all the entries of a
+     *            jar
+     * @param name the entry name, e.g. <code>com/foo/Bar.class</code>
+     * @param size the uncompressed size, or -1 if it's unknown
+     * @return false to stop scanning
+     */
+    boolean visit(URL jarURL, String name, long size);
+}
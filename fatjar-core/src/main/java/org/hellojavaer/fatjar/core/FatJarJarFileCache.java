@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarFile;
+
+/**
+ * The jar files opened for <code>jar:</code> urls, shared by all the connections of the process and keyed by canonical
+ * path, so that the central directory of a jar is read once instead of once per connection.
+ *
+ * <p>
+ * A jar file is closed once it has been unused for <code>fatjar.jarfile.idle</code> seconds, the idle ones are looked
+ * for by the calls of {@link #acquire(File)} at most once per {@link #SWEEP_INTERVAL_MILLIS}. A jar file whose file has
+ * been modified or replaced since it was opened isn't handed out any more, it's closed when its last user releases it;
+ * the sweeps look for them too. A pinned jar file has been handed out to a caller who may use it at any time, so it's
+ * never closed for being idle, only once its file has changed and it has no users left.
+ */
+class FatJarJarFileCache {
+
+    private static final Logger                               logger                = new Logger();
+
+    private static final long                                 SWEEP_INTERVAL_MILLIS = 10000;
+    // a file isn't checked for changes more often than this
+    private static final long                                 CHECK_INTERVAL_MILLIS = 1000;
+
+    private static final long                                 idleMillis            = FatJarSystemConfig.getJarFileIdleSeconds() * 1000L;
+
+    // key: canonical path
+    private static final ConcurrentMap<String, CachedJarFile> jarFiles              = new ConcurrentHashMap<>();
+
+    private static final AtomicLong                           lastSweep             = new AtomicLong();
+
+    static {
+        if (logger.isDebugEnabled()) {
+            logger.debug("FatJarJarFileCache is loaded by " + FatJarJarFileCache.class.getClassLoader());
+        }
+    }
+
+    /**
+     * Opens the jar file or shares the open one, each call must be followed by one {@link CachedJarFile#release()}.
+     */
+    public static CachedJarFile acquire(File file) throws IOException {
+        return acquire(file, file.getCanonicalPath());
+    }
+
+    /**
+     * @param path the canonical path of the file, which the caller has resolved before
+     */
+    public static CachedJarFile acquire(File file, String path) throws IOException {
+        CachedJarFile cached = acquire0(file, path);
+        // the acquired one isn't idle
+        sweep();
+        return cached;
+    }
+
+    private static CachedJarFile acquire0(File file, String path) throws IOException {
+        for (;;) {
+            CachedJarFile cached = jarFiles.get(path);
+            if (cached == null) {
+                if (file.isDirectory()) {
+                    throw new FileNotFoundException(file.getPath() + " (Is a directory)");
+                }
+                CachedJarFile created = new CachedJarFile(path, file);
+                created.retain();
+                cached = jarFiles.putIfAbsent(path, created);
+                if (cached == null) {
+                    return created;
+                }
+                // opened by another thread meanwhile
+                created.retire();
+                created.release();
+            }
+            if (cached.isStale()) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("[FatJarJarFileCache] " + path + " has changed, it's opened again");
+                }
+                jarFiles.remove(path, cached);
+                cached.retire();
+            } else if (cached.retain()) {
+                return cached;
+            } else {
+                // closed by a sweep which hasn't removed it yet
+                jarFiles.remove(path, cached);
+            }
+        }
+    }
+
+    private static void sweep() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_MILLIS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for (CachedJarFile cached : jarFiles.values()) {
+            // a pinned jar file of a changed file is only closed by retiring it
+            if (cached.isStale()) {
+                jarFiles.remove(cached.path, cached);
+                cached.retire();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("[FatJarJarFileCache] retired changed " + cached.path);
+                }
+            } else if (cached.closeIfIdle(now)) {
+                jarFiles.remove(cached.path, cached);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("[FatJarJarFileCache] closed idle " + cached.path);
+                }
+            }
+        }
+    }
+
+    static class CachedJarFile {
+
+        private final String  path;
+        private final File    file;
+        private final JarFile jarFile;
+        private final long    lastModified;
+        private final long    length;
+        private volatile long lastChecked;
+        // the fields below are guarded by this
+        private int           references = 0;
+        private long          lastUsed;
+        private boolean       retired    = false;
+        private boolean       pinned     = false;
+        private boolean       closed     = false;
+
+        private CachedJarFile(String path, File file) throws IOException {
+            this.path = path;
+            this.file = file;
+            // read the attributes first, so a change while opening is seen by the next check
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.jarFile = new JarFile(file);
+            this.lastChecked = System.currentTimeMillis();
+            this.lastUsed = this.lastChecked;
+        }
+
+        public JarFile getJarFile() {
+            return jarFile;
+        }
+
+        /**
+         * @return the last modified time of the file when it was opened
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the length of the file when it was opened
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Adds a user, who must call {@link #release()} later.
+         *
+         * @return false if it's been closed
+         */
+        public synchronized boolean retain() {
+            if (closed) {
+                return false;
+            }
+            references++;
+            return true;
+        }
+
+        public synchronized void release() {
+            references--;
+            lastUsed = System.currentTimeMillis();
+            if (references == 0 && (retired || (!pinned && idleMillis <= 0))) {
+                close();
+            }
+        }
+
+        /**
+         * Keeps it open for a caller who uses it without releasing it, e.g. the one of
+         * {@link java.net.JarURLConnection#getJarFile()}, until its file has changed.
+         *
+         * @return false if it's been closed
+         */
+        public synchronized boolean pin() {
+            if (closed) {
+                return false;
+            }
+            pinned = true;
+            return true;
+        }
+
+        private boolean isStale() {
+            long now = System.currentTimeMillis();
+            if (now - lastChecked < CHECK_INTERVAL_MILLIS) {
+                return false;
+            }
+            lastChecked = now;
+            return file.lastModified() != lastModified || file.length() != length;
+        }
+
+        private synchronized void retire() {
+            retired = true;
+            // the file has changed, so a pinned one isn't worth keeping open
+            if (references == 0 && !closed) {
+                close();
+            }
+        }
+
+        private synchronized boolean closeIfIdle(long now) {
+            if (!closed && !pinned && references == 0 && now - lastUsed >= idleMillis) {
+                close();
+            }
+            return closed;
+        }
+
+        private void close() {
+            closed = true;
+            try {
+                jarFile.close();
+            } catch (IOException e) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("[FatJarJarFileCache] close " + path + " failed, " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.io.PrintStream;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the lines of {@link Logger} on a background thread, so that a thread which logs while it holds a class loading
+ * lock doesn't wait for the console.
+ *
+ * <p>
+ * The lines go through a bounded ring buffer. Logging threads claim a slot by a CAS on <code>tail</code> and publish
+ * the line into it, the writer thread reads the slots in order and frees them by moving <code>head</code>. A full
+ * buffer is reported to the caller instead of being waited for. The writer parks while the buffer is empty and is
+ * unparked by the next line. It's started by the first line and drains the buffer when the JVM exits.
+ *
+ * <p>
+ * The writer thread and the shutdown hook hold the class loader of this class until {@link #stop()} is called, so it
+ * must be called when that class loader is discarded, e.g. when a web application which contains fatjar-core is
+ * undeployed.
+ */
+class FatJarLogWriter implements Runnable {
+
+    private final AtomicReferenceArray<String> buffer;
+    private final int                          mask;
+    // the next slot to claim
+    private final AtomicLong                   tail            = new AtomicLong();
+    // the next slot to write, only moved by the thread which holds drainLock
+    private final AtomicLong                   head            = new AtomicLong();
+    private final Object                       drainLock       = new Object();
+    private final AtomicLong                   dropped         = new AtomicLong();
+    private final AtomicBoolean                started         = new AtomicBoolean();
+    private volatile Thread                    thread          = null;
+    private Thread                             shutdownHook    = null;
+    // set by the writer before it parks, a line offered meanwhile unparks it
+    private volatile boolean                   waiting         = false;
+    private volatile boolean                   closed          = false;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public FatJarLogWriter(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * @return false if the buffer is full or the JVM is exiting, then the caller writes or drops the line itself
+     */
+    public boolean offer(String line) {
+        if (closed) {
+            return false;
+        }
+        long t;
+        do {
+            t = tail.get();
+            if (t - head.get() > mask) {
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        buffer.lazySet((int) t & mask, line);
+        if (!started.get()) {
+            start();
+        } else if (waiting) {
+            Thread writerThread = thread;
+            if (writerThread != null) {
+                LockSupport.unpark(writerThread);
+            }
+        }
+        // the buffer may have been drained for the last time before the line was published
+        if (closed) {
+            drain();
+        }
+        return true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Counts a line which is dropped because the buffer is full, the count is written with the next lines.
+     */
+    public void drop() {
+        dropped.incrementAndGet();
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            if (!drain()) {
+                waiting = true;
+                // a line whose slot was claimed before waiting was set hasn't unparked the writer
+                if (tail.get() == head.get()) {
+                    LockSupport.park(this);
+                } else {
+                    Thread.yield();
+                }
+                waiting = false;
+            }
+        }
+    }
+
+    /**
+     * @return false if there was nothing to write
+     */
+    private boolean drain() {
+        synchronized (drainLock) {
+            // System.out may be replaced by the application
+            PrintStream out = System.out;
+            boolean written = false;
+            long h = head.get();
+            for (;;) {
+                int slot = (int) h & mask;
+                // a claimed slot stays null until the line is published
+                String line = buffer.get(slot);
+                if (line == null) {
+                    break;
+                }
+                buffer.lazySet(slot, null);
+                head.lazySet(++h);
+                out.println(line);
+                written = true;
+            }
+            long count = dropped.getAndSet(0);
+            if (count > 0) {
+                out.println("WARN: [FatJar] -| [FatJarLogWriter] " + count
+                            + " log lines were dropped, the buffer is full");
+                written = true;
+            }
+            if (written) {
+                out.flush();
+            }
+            return written;
+        }
+    }
+
+    private void start() {
+        if (started.compareAndSet(false, true)) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                // the threads don't take the context class loader and access control context of the logging thread,
+                // which may belong to another web application than the class loader of this class
+                AccessController.doPrivileged(new PrivilegedAction<Void>() {
+
+                    @Override
+                    public Void run() {
+                        Thread writerThread = new Thread(FatJarLogWriter.this, "fatjar-log-writer");
+                        writerThread.setDaemon(true);
+                        writerThread.setContextClassLoader(null);
+                        thread = writerThread;
+                        writerThread.start();
+                        shutdownHook = new ShutdownHook(FatJarLogWriter.this);
+                        shutdownHook.setContextClassLoader(null);
+                        Runtime.getRuntime().addShutdownHook(shutdownHook);
+                        return null;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Ends the writer thread and removes the shutdown hook, the buffered lines are written and the later ones are
+     * written by their callers.
+     */
+    public void stop() {
+        Thread writerThread;
+        synchronized (this) {
+            closed = true;
+            writerThread = thread;
+            thread = null;
+            if (shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // the JVM is exiting, the hook drains the buffer
+                }
+                shutdownHook = null;
+            }
+        }
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Writes the lines which are still buffered when the JVM exits, the later lines are written by their callers.
+     */
+    private static class ShutdownHook extends Thread {
+
+        private final FatJarLogWriter writer;
+
+        public ShutdownHook(FatJarLogWriter writer) {
+            super("fatjar-log-writer-flusher");
+            this.writer = writer;
+        }
+
+        @Override
+        public void run() {
+            writer.closed = true;
+            writer.drain();
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The counters behind {@link FatJarMetricsMXBean}, they are always updated and only registered to the platform
+ * MBeanServer if {@link FatJarSystemConfig#isJmxEnabled()}. They're registered by the first lookup of their class
+ * loader, so that a class loader isn't published to the MBeanServer before it's constructed.
+ */
+class FatJarMetrics implements FatJarMetricsMXBean {
+
+    private static final Logger         logger                  = new Logger();
+
+    private static final String         DOMAIN                  = "org.hellojavaer.fatjar";
+
+    public static final int             TIER_J2SE               = 0;
+    public static final int             TIER_LOCAL              = 1;
+    public static final int             TIER_SUB_LOADER         = 2;
+    public static final int             TIER_PARENT             = 3;
+    public static final int             TIER_CHILD              = 4;
+    private static final String[]       TIER_NAMES              = { "j2se", "local", "subLoader", "parent", "child" };
+
+    private static final int            LATENCY_BUCKETS         = 24;
+
+    // counter indexes
+    private static final int            CLASSES_DEFINED         = 0;
+    private static final int            LOADED_RESOURCES_HITS   = 1;
+    private static final int            LOADED_RESOURCES_MISSES = 2;
+    private static final int            BYTES_READ              = 3;
+    private static final int            BYTES_INFLATED          = 4;
+    private static final int            NESTED_JARS_EXTRACTED   = 5;
+    private static final int            CLASS_HITS              = 6;
+    private static final int            CLASS_MISSES            = CLASS_HITS + TIER_NAMES.length;
+    private static final int            RESOURCE_HITS           = CLASS_MISSES + TIER_NAMES.length;
+    private static final int            RESOURCE_MISSES         = RESOURCE_HITS + TIER_NAMES.length;
+    private static final int            CLASS_LATENCY           = RESOURCE_MISSES + TIER_NAMES.length;
+    private static final int            RESOURCE_LATENCY        = CLASS_LATENCY + LATENCY_BUCKETS;
+    private static final int            COUNTER_COUNT           = RESOURCE_LATENCY + LATENCY_BUCKETS;
+
+    private final FatJarStripedCounters counters                = new FatJarStripedCounters(COUNTER_COUNT);
+    private final String                url;
+    private final String                type;
+    // null for a proxy, which has no nested jars of its own
+    private final FatJarClassLoader     classLoader;
+    // also set once it's been unregistered, so that a closed class loader isn't registered again
+    private volatile boolean            registered              = !FatJarSystemConfig.isJmxEnabled();
+    private volatile ObjectName         objectName;
+
+    /**
+     * @param type the simple class name of the class loader
+     */
+    public FatJarMetrics(String url, String type, FatJarClassLoader classLoader) {
+        this.url = url;
+        this.type = type;
+        this.classLoader = classLoader;
+    }
+
+    private synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        try {
+            // the identity hash tells apart the loaders of the same jar
+            ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(url) + ",id="
+                                             + Integer.toHexString(System.identityHashCode(this)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (Exception e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("[FatJarMetrics] register the MBean of " + url + " failed, " + e);
+            }
+        }
+    }
+
+    public synchronized void unregister() {
+        registered = true;
+        ObjectName name = objectName;
+        if (name != null) {
+            objectName = null;
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.unregisterMBean(name);
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    public void classDefined() {
+        counters.increment(CLASSES_DEFINED);
+    }
+
+    public void loadedResourcesHit() {
+        counters.increment(LOADED_RESOURCES_HITS);
+    }
+
+    public void loadedResourcesMiss() {
+        counters.increment(LOADED_RESOURCES_MISSES);
+    }
+
+    /**
+     * @param bytesInflated 0 if the entry is stored
+     */
+    public void entryRead(long bytesRead, long bytesInflated) {
+        counters.add(BYTES_READ, bytesRead);
+        if (bytesInflated > 0) {
+            counters.add(BYTES_INFLATED, bytesInflated);
+        }
+    }
+
+    public void nestedJarExtracted() {
+        counters.increment(NESTED_JARS_EXTRACTED);
+    }
+
+    public void classHit(int tier) {
+        counters.increment(CLASS_HITS + tier);
+    }
+
+    public void classMiss(int tier) {
+        counters.increment(CLASS_MISSES + tier);
+    }
+
+    public void resourceHit(int tier) {
+        counters.increment(RESOURCE_HITS + tier);
+    }
+
+    public void resourceMiss(int tier) {
+        counters.increment(RESOURCE_MISSES + tier);
+    }
+
+    public void classLookup(long startNanos) {
+        counters.increment(CLASS_LATENCY + latencyBucket(System.nanoTime() - startNanos));
+        if (!registered) {
+            register();
+        }
+    }
+
+    public void resourceLookup(long startNanos) {
+        counters.increment(RESOURCE_LATENCY + latencyBucket(System.nanoTime() - startNanos));
+        if (!registered) {
+            register();
+        }
+    }
+
+    private static int latencyBucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), LATENCY_BUCKETS - 1);
+    }
+
+    @Override
+    public String getURL() {
+        return url;
+    }
+
+    @Override
+    public long getClassesDefined() {
+        return counters.get(CLASSES_DEFINED);
+    }
+
+    @Override
+    public Map<String, Long> getClassHits() {
+        return getTierCounters(CLASS_HITS);
+    }
+
+    @Override
+    public Map<String, Long> getClassMisses() {
+        return getTierCounters(CLASS_MISSES);
+    }
+
+    @Override
+    public Map<String, Long> getResourceHits() {
+        return getTierCounters(RESOURCE_HITS);
+    }
+
+    @Override
+    public Map<String, Long> getResourceMisses() {
+        return getTierCounters(RESOURCE_MISSES);
+    }
+
+    private Map<String, Long> getTierCounters(int base) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < TIER_NAMES.length; i++) {
+            map.put(TIER_NAMES[i], counters.get(base + i));
+        }
+        return map;
+    }
+
+    @Override
+    public long getLoadedResourcesHits() {
+        return counters.get(LOADED_RESOURCES_HITS);
+    }
+
+    @Override
+    public long getLoadedResourcesMisses() {
+        return counters.get(LOADED_RESOURCES_MISSES);
+    }
+
+    @Override
+    public double getLoadedResourcesHitRate() {
+        return rate(getLoadedResourcesHits(), getLoadedResourcesMisses());
+    }
+
+    @Override
+    public long getNotFoundFilterHits() {
+        return classLoader == null ? 0 : classLoader.getNotFoundFilterHits();
+    }
+
+    @Override
+    public long getNotFoundFilterFalsePositives() {
+        return classLoader == null ? 0 : classLoader.getNotFoundFilterFalsePositives();
+    }
+
+    /**
+     * @return the fraction of the absent lookups which were answered by the negative cache
+     */
+    @Override
+    public double getNotFoundFilterHitRate() {
+        return rate(getNotFoundFilterHits(), getNotFoundFilterFalsePositives());
+    }
+
+    @Override
+    public long getURLNotFoundCacheHits() {
+        return FatJarURLStreamHandler.getNotFoundResources().getHits();
+    }
+
+    @Override
+    public long getURLNotFoundCacheMisses() {
+        return FatJarURLStreamHandler.getNotFoundResources().getMisses();
+    }
+
+    @Override
+    public double getURLNotFoundCacheHitRate() {
+        return rate(getURLNotFoundCacheHits(), getURLNotFoundCacheMisses());
+    }
+
+    @Override
+    public int getURLNotFoundCacheSize() {
+        return FatJarURLStreamHandler.getNotFoundResources().size();
+    }
+
+    private static double rate(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return counters.get(BYTES_READ);
+    }
+
+    @Override
+    public long getBytesInflated() {
+        return counters.get(BYTES_INFLATED);
+    }
+
+    @Override
+    public int getNestedJars() {
+        return classLoader == null ? 0 : classLoader.getListedNestedJarCount();
+    }
+
+    @Override
+    public int getNestedJarsOpened() {
+        return classLoader == null ? 0 : classLoader.getOpenedNestedJarCount();
+    }
+
+    @Override
+    public long getNestedJarsExtracted() {
+        return counters.get(NESTED_JARS_EXTRACTED);
+    }
+
+    @Override
+    public long[] getClassLookupLatencyHistogram() {
+        return getHistogram(CLASS_LATENCY);
+    }
+
+    @Override
+    public long getClassLookupLatencyP50Micros() {
+        return percentile(getHistogram(CLASS_LATENCY), 0.5);
+    }
+
+    @Override
+    public long getClassLookupLatencyP99Micros() {
+        return percentile(getHistogram(CLASS_LATENCY), 0.99);
+    }
+
+    @Override
+    public long[] getResourceLookupLatencyHistogram() {
+        return getHistogram(RESOURCE_LATENCY);
+    }
+
+    @Override
+    public long getResourceLookupLatencyP50Micros() {
+        return percentile(getHistogram(RESOURCE_LATENCY), 0.5);
+    }
+
+    @Override
+    public long getResourceLookupLatencyP99Micros() {
+        return percentile(getHistogram(RESOURCE_LATENCY), 0.99);
+    }
+
+    private long[] getHistogram(int base) {
+        long[] histogram = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            histogram[i] = counters.get(base + i);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the upper bound of the bucket which holds the percentile, or 0 if nothing is recorded
+     */
+    private static long percentile(long[] histogram, double percentile) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile);
+        long sum = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            sum += histogram[i];
+            if (sum >= threshold) {
+                return 1L << i;
+            }
+        }
+        return 1L << (histogram.length - 1);
+    }
+}
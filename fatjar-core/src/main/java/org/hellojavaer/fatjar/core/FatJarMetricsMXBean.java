@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.util.Map;
+
+/**
+ * Runtime metrics of a {@link FatJarClassLoader} or {@link FatJarClassLoaderProxy}, registered under the domain
+ * <code>org.hellojavaer.fatjar</code>.
+ *
+ * <p>
+ * The hits and misses are keyed by the tier which was asked, <code>j2se</code>, <code>local</code>,
+ * <code>subLoader</code>, <code>parent</code> and <code>child</code>. Bucket <code>i</code> of a latency histogram
+ * counts the lookups which took less than <code>2^i</code> microseconds and at least half of that.
+ */
+public interface FatJarMetricsMXBean {
+
+    String getURL();
+
+    long getClassesDefined();
+
+    Map<String, Long> getClassHits();
+
+    Map<String, Long> getClassMisses();
+
+    Map<String, Long> getResourceHits();
+
+    Map<String, Long> getResourceMisses();
+
+    long getLoadedResourcesHits();
+
+    long getLoadedResourcesMisses();
+
+    double getLoadedResourcesHitRate();
+
+    long getNotFoundFilterHits();
+
+    long getNotFoundFilterFalsePositives();
+
+    double getNotFoundFilterHitRate();
+
+    /**
+     * @return the number of <code>jar:</code> urls answered from the not found cache, which is shared by the process
+     */
+    long getURLNotFoundCacheHits();
+
+    long getURLNotFoundCacheMisses();
+
+    double getURLNotFoundCacheHitRate();
+
+    int getURLNotFoundCacheSize();
+
+    long getBytesRead();
+
+    long getBytesInflated();
+
+    /**
+     * @return the number of nested jars which aren't fat jars, 0 until the first lookup lists them; reading it opens no
+     *         jar
+     */
+    int getNestedJars();
+
+    int getNestedJarsOpened();
+
+    long getNestedJarsExtracted();
+
+    long[] getClassLookupLatencyHistogram();
+
+    long getClassLookupLatencyP50Micros();
+
+    long getClassLookupLatencyP99Micros();
+
+    long[] getResourceLookupLatencyHistogram();
+
+    long getResourceLookupLatencyP50Micros();
+
+    long getResourceLookupLatencyP99Micros();
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ordered classes and resources which a {@link FatJarClassLoader} served during a boot.
+ *
+ * <p>
+ * A profile is recorded until {@link #save()} is called, then it's written as lines of <code>C class-name</code> and
+ * <code>R resource-name</code>. Later boots {@link #replay(FatJarClassLoader, List, int, boolean)} it on background
+ * threads, so the bytes are read and inflated before the main thread asks for them. The classes which have been read
+ * but haven't been defined by the time the replay is over are dropped.
+ */
+class FatJarPreloadProfile {
+
+    private static final Logger logger        = new Logger();
+
+    private static final int    MAX_ENTRIES   = 1 << 17;
+    private static final String CLASS_KIND    = "C ";
+    private static final String RESOURCE_KIND = "R ";
+    private static final String ENCODING      = "UTF-8";
+
+    private final File          file;
+    private final Queue<String> entries       = new ConcurrentLinkedQueue<>();
+    private final Set<String>   recorded      = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicInteger size          = new AtomicInteger();
+    private volatile boolean    recording     = true;
+
+    public FatJarPreloadProfile(File file) {
+        this.file = file;
+    }
+
+    public void record(String name, boolean isClass) {
+        if (!recording || size.get() >= MAX_ENTRIES) {
+            return;
+        }
+        String entry = (isClass ? CLASS_KIND : RESOURCE_KIND) + name;
+        if (recorded.add(entry)) {
+            entries.add(entry);
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops recording and writes the profile, only the first call writes. The recorded entries are released once
+     * they're written.
+     */
+    public synchronized void save() {
+        if (!recording) {
+            return;
+        }
+        recording = false;
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), ENCODING));
+            try {
+                for (String entry : entries) {
+                    writer.write(entry);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            // replace the old profile as a whole, a reader never sees a partial one
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("can't rename " + tempFile + " to " + file);
+                }
+            }
+            if (logger.isInfoEnabled()) {
+                logger.info("[FatJarPreloadProfile] recorded " + size.get() + " entries into " + file);
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            if (logger.isWarnEnabled()) {
+                logger.warn("[FatJarPreloadProfile] write " + file + " failed, " + e.getMessage());
+            }
+        } finally {
+            entries.clear();
+            recorded.clear();
+        }
+    }
+
+    /**
+     * @return the entries of the profile, or null if it can't be read
+     */
+    public static List<String> load(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+            try {
+                List<String> entries = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(CLASS_KIND) || line.startsWith(RESOURCE_KIND)) {
+                        entries.add(line);
+                    }
+                }
+                return entries;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("[FatJarPreloadProfile] read " + file + " failed, " + e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Preloads the entries in order on daemon threads, which share one cursor so the earliest entries are read first.
+     */
+    public static void replay(FatJarClassLoader classLoader, List<String> entries, int threads, boolean defineClasses) {
+        Replayer replayer = new Replayer(classLoader, entries, threads, defineClasses);
+        for (int i = 1; i <= threads; i++) {
+            Thread thread = new Thread(replayer, "fatjar-preload-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static class Replayer implements Runnable {
+
+        private final FatJarClassLoader classLoader;
+        private final List<String>      entries;
+        private final boolean           defineClasses;
+        private final AtomicInteger     cursor = new AtomicInteger();
+        private final AtomicInteger     runningThreads;
+        private final long              start  = System.nanoTime();
+
+        public Replayer(FatJarClassLoader classLoader, List<String> entries, int threads, boolean defineClasses) {
+            this.classLoader = classLoader;
+            this.entries = entries;
+            this.defineClasses = defineClasses;
+            this.runningThreads = new AtomicInteger(threads);
+        }
+
+        @Override
+        public void run() {
+            try {
+                int i;
+                while ((i = cursor.getAndIncrement()) < entries.size()) {
+                    String entry = entries.get(i);
+                    try {
+                        classLoader.preload(entry.substring(2), entry.startsWith(CLASS_KIND), defineClasses);
+                    } catch (Throwable e) {
+                        // the main thread will meet the same error when it really needs the entry
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("[FatJarPreloadProfile] preload " + entry + " failed, " + e);
+                        }
+                    }
+                }
+            } finally {
+                if (runningThreads.decrementAndGet() == 0) {
+                    if (logger.isInfoEnabled()) {
+                        logger.info("[FatJarPreloadProfile] preloaded " + entries.size() + " entries in "
+                                    + (System.nanoTime() - start) / 1000000 + " ms");
+                    }
+                    if (!defineClasses) {
+                        for (String entry : entries) {
+                            if (entry.startsWith(CLASS_KIND)) {
+                                classLoader.dropPreloaded(entry.substring(2));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves a profile which is still recording when the JVM exits.
+     */
+    static class ShutdownHook extends Thread {
+
+        private final FatJarPreloadProfile profile;
+
+        public ShutdownHook(FatJarPreloadProfile profile) {
+            super("fatjar-preload-profile-saver");
+            this.profile = profile;
+        }
+
+        @Override
+        public void run() {
+            profile.save();
+        }
+    }
+}
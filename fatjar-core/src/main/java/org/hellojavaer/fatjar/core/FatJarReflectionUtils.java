@@ -15,9 +15,12 @@
  */
 package org.hellojavaer.fatjar.core;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  *
@@ -25,9 +28,13 @@ import java.util.Map;
  */
 class FatJarReflectionUtils {
 
-    private static final Logger                          logger    = new Logger();
+    private static final Logger                                             logger    = new Logger();
 
-    private static final Map<Class, Map<String, Method>> methodMap = new HashMap<>();
+    // the cache hangs off each class, so it never keeps a class loader alive
+    private static final ClassValue<ConcurrentMap<MethodSignature, Object>> methodMap = new MethodMap();
+
+    // cached for a method which isn't found, as the map doesn't accept null
+    private static final Object                                             NOT_FOUND = new Object();
 
     static {
         if (logger.isDebugEnabled()) {
@@ -35,45 +42,93 @@ class FatJarReflectionUtils {
         }
     }
 
+    /**
+     * Finds the method declared by the class or its nearest super class, made accessible. The result is cached per
+     * class and per name and parameter types, a cached result is read without locking.
+     */
     public static Method getMethod(Class<?> clazz, String methodName, Class<?>... parameterTypes) {
         if (clazz == null) {
             return null;
         }
-        Map<String, Method> methods = methodMap.get(clazz);
-        if (methods == null) {
-            synchronized (methodMap) {
-                methods = methodMap.get(clazz);
-                if (methods == null) {
-                    methods = new HashMap<>();
-                    methodMap.put(clazz, methods);
-                }
+        ConcurrentMap<MethodSignature, Object> methods = methodMap.get(clazz);
+        MethodSignature signature = new MethodSignature(methodName, parameterTypes);
+        Object method = methods.get(signature);
+        if (method == null) {
+            // racing threads find the same method, the first one is kept
+            method = findMethod(clazz, methodName, parameterTypes);
+            Object previous = methods.putIfAbsent(new MethodSignature(methodName, parameterTypes.clone()), method);
+            if (previous != null) {
+                method = previous;
             }
         }
-        if (methods.containsKey(methodName)) {
-            Method method = methods.get(methodName);
-            method.setAccessible(true);
-            return method;
-        } else {
-            synchronized (methods) {
-                if (methods.containsKey(methodName)) {
-                    return methods.get(methodName);
-                } else {
-                    Class<?> clazz0 = clazz;
-                    while (clazz0 != null) {
-                        try {
-                            Method method = clazz0.getDeclaredMethod(methodName, parameterTypes);
-                            method.setAccessible(true);
-                            methods.put(methodName, method);
-                            return method;
-                        } catch (Exception e) {
-                            clazz0 = clazz0.getSuperclass();
-                            continue;
-                        }
-                    }
-                    methods.put(methodName, null);
-                    return null;
-                }
+        return method == NOT_FOUND ? null : (Method) method;
+    }
+
+    private static Object findMethod(Class<?> clazz, String methodName, Class<?>... parameterTypes) {
+        Class<?> clazz0 = clazz;
+        while (clazz0 != null) {
+            try {
+                Method method = clazz0.getDeclaredMethod(methodName, parameterTypes);
+                method.setAccessible(true);
+                return method;
+            } catch (Exception e) {
+                clazz0 = clazz0.getSuperclass();
             }
         }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Returns the method found by {@link #getMethod(Class, String, Class[])} as a handle whose type is erased, e.g.
+     * <code>(Object,Object,boolean)Object</code> for <code>loadClass(String, boolean)</code>, so that it can be called
+     * by <code>invokeExact</code> whichever class declares the method.
+     */
+    public static MethodHandle getMethodHandle(Class<?> clazz, String methodName, Class<?>... parameterTypes) {
+        Method method = getMethod(clazz, methodName, parameterTypes);
+        if (method == null) {
+            return null;
+        }
+        try {
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            return handle.asType(handle.type().erase());
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class MethodSignature {
+
+        private final String     name;
+        private final Class<?>[] parameterTypes;
+
+        public MethodSignature(String name, Class<?>[] parameterTypes) {
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof MethodSignature)) {
+                return false;
+            }
+            MethodSignature other = (MethodSignature) obj;
+            return name.equals(other.name) && Arrays.equals(parameterTypes, other.parameterTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + Arrays.hashCode(parameterTypes);
+        }
+    }
+
+    private static class MethodMap extends ClassValue<ConcurrentMap<MethodSignature, Object>> {
+
+        @Override
+        protected ConcurrentMap<MethodSignature, Object> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
     }
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The handler of the resource urls of a jar which a {@link FatJarClassLoader} holds open, the fat jar itself or one of
+ * its nested jars. Opening such an url streams the entry from the open jar, the url isn't parsed and no jar is opened
+ * or extracted again.
+ *
+ * <p>
+ * Urls of other jars, e.g. the ones resolved against a resource url, and all the urls once the class loader has been
+ * closed are served by {@link FatJarURLStreamHandler}.
+ */
+class FatJarResourceURLStreamHandler extends FatJarURLStreamHandler {
+
+    private static final String JAR_PROTOCOL = "jar";
+
+    // e.g. file:/a/b.jar!/lib/c.jar!/
+    private final String        prefix;
+    // one of them is set
+    private final JarFile       jarFile;
+    private final FatJarArchive archive;
+    private volatile boolean    closed;
+
+    public FatJarResourceURLStreamHandler(String prefix, JarFile jarFile) {
+        this.prefix = prefix;
+        this.jarFile = jarFile;
+        this.archive = null;
+    }
+
+    public FatJarResourceURLStreamHandler(String prefix, FatJarArchive archive) {
+        this.prefix = prefix;
+        this.jarFile = null;
+        this.archive = archive;
+    }
+
+    /**
+     * @return <code>jar:</code> + prefix + path, opened by this handler
+     */
+    public URL createURL(String path) throws MalformedURLException {
+        return new URL(JAR_PROTOCOL, "", -1, prefix + path, this);
+    }
+
+    /**
+     * @return the entry streamed from the bound jar, inflated as it's read
+     */
+    public InputStream openStream(String path) throws IOException {
+        if (jarFile != null) {
+            JarEntry jarEntry = jarFile.getJarEntry(path);
+            if (jarEntry == null) {
+                throw new FileNotFoundException("JAR entry " + path + " not found in " + jarFile.getName());
+            }
+            return jarFile.getInputStream(jarEntry);
+        } else {
+            int entry = archive.getEntry(path);
+            if (entry < 0) {
+                throw new FileNotFoundException("JAR entry " + path + " not found in " + prefix);
+            }
+            return archive.getInputStream(entry);
+        }
+    }
+
+    /**
+     * Called when the class loader is closed, the urls which have been handed out are opened by
+     * {@link FatJarURLStreamHandler} from then on.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    protected URLConnection openConnection(URL u) throws IOException {
+        String file = u.getFile();
+        if (closed || !file.startsWith(prefix)) {
+            return super.openConnection(u);
+        }
+        return new ResourceURLConnection(u, file.substring(prefix.length()));
+    }
+
+    private class ResourceURLConnection extends JarURLConnection {
+
+        private final String     path;
+        private JarEntry         jarEntry;
+        private int              entry = -1;
+        // the connection of the plain url, which the jar file of an archive is got from
+        private JarURLConnection fallback;
+
+        public ResourceURLConnection(URL url, String path) throws MalformedURLException {
+            super(url);
+            this.path = path;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!connected) {
+                if (jarFile != null) {
+                    jarEntry = jarFile.getJarEntry(path);
+                    if (jarEntry == null) {
+                        throw new FileNotFoundException("JAR entry " + path + " not found in " + jarFile.getName());
+                    }
+                } else {
+                    entry = archive.getEntry(path);
+                    if (entry < 0) {
+                        throw new FileNotFoundException("JAR entry " + path + " not found in " + prefix);
+                    }
+                    jarEntry = new JarEntry(path);
+                    jarEntry.setMethod(archive.getMethod(entry));
+                    jarEntry.setCrc(archive.getCrc(entry));
+                    jarEntry.setSize(archive.getSize(entry));
+                    jarEntry.setCompressedSize(archive.getCompressedSize(entry));
+                }
+                connected = true;
+            }
+        }
+
+        /**
+         * @return the jar file the class loader holds open, or for a nested jar read in place the one opened by
+         *         {@link FatJarURLStreamHandler} for the plain url
+         */
+        @Override
+        public JarFile getJarFile() throws IOException {
+            connect();
+            if (jarFile != null) {
+                return jarFile;
+            }
+            synchronized (this) {
+                if (fallback == null) {
+                    fallback = (JarURLConnection) FatJarResourceURLStreamHandler.super.openConnection(url);
+                    fallback.setUseCaches(getUseCaches());
+                }
+            }
+            return fallback.getJarFile();
+        }
+
+        /**
+         * @return the entry of the jar file, for a nested jar read in place one built from the archive which has no
+         *         attributes or certificates
+         */
+        @Override
+        public JarEntry getJarEntry() throws IOException {
+            connect();
+            return jarEntry;
+        }
+
+        /**
+         * @return the path after the last <code>!/</code>, the entry of {@link #getJarFile()}
+         */
+        @Override
+        public String getEntryName() {
+            return path;
+        }
+
+        @Override
+        public Manifest getManifest() throws IOException {
+            connect();
+            return jarFile != null ? jarFile.getManifest() : archive.getManifest();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            if (jarFile != null) {
+                return jarFile.getInputStream(jarEntry);
+            } else {
+                return archive.getInputStream(entry);
+            }
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            try {
+                connect();
+            } catch (IOException e) {
+                return -1;
+            }
+            return jarEntry.getSize();
+        }
+
+        @Override
+        public int getContentLength() {
+            long length = getContentLengthLong();
+            return length > Integer.MAX_VALUE ? -1 : (int) length;
+        }
+
+        @Override
+        public long getLastModified() {
+            try {
+                connect();
+            } catch (IOException e) {
+                return 0;
+            }
+            return jarFile != null ? jarEntry.getTime() : 0;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed set of counters which are striped by thread, LongAdder doesn't exist before java 8.
+ *
+ * <p>
+ * Each stripe holds all the counters and is padded to whole cache lines, a thread always adds to the stripe picked by
+ * its id, so concurrent threads rarely write to the same cache line. Reading a counter sums up its stripes, the sum
+ * isn't an atomic snapshot.
+ */
+class FatJarStripedCounters {
+
+    private static final int      LONGS_PER_CACHE_LINE = 8;
+    private static final int      MAX_STRIPES          = 32;
+
+    private final AtomicLongArray cells;
+    private final int             stride;
+    private final int             mask;
+
+    public FatJarStripedCounters(int counterCount) {
+        int stripes = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_STRIPES));
+        // the extra line keeps the first counters of a stripe off the last line of the previous one
+        this.stride = ((counterCount + LONGS_PER_CACHE_LINE - 1) / LONGS_PER_CACHE_LINE + 1) * LONGS_PER_CACHE_LINE;
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * stride);
+    }
+
+    public void increment(int counter) {
+        add(counter, 1);
+    }
+
+    public void add(int counter, long delta) {
+        cells.getAndAdd(stripe() + counter, delta);
+    }
+
+    public long get(int counter) {
+        long sum = 0;
+        for (int i = counter; i < cells.length(); i += stride) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        // thread ids are sequential, mix them so neighbouring threads spread over the stripes
+        int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return ((h ^ (h >>> 16)) & mask) * stride;
+    }
+}
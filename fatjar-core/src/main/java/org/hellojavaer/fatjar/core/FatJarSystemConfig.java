@@ -21,10 +21,24 @@ package org.hellojavaer.fatjar.core;
  */
 class FatJarSystemConfig {
 
-    private static final Logger logger            = new Logger();
+    private static final Logger logger                 = new Logger();
 
-    private static final String TEMP_FILE_DIR_KEY = "fatjar.temp.dir";
-    private static final String LOG_LEVEL_KEY     = "fatjar.log.level";
+    private static final String TEMP_FILE_DIR_KEY      = "fatjar.temp.dir";
+    private static final String LOG_LEVEL_KEY          = "fatjar.log.level";
+    private static final String LOG_ASYNC_KEY          = "fatjar.log.async";
+    private static final String IN_PLACE_KEY           = "fatjar.nested.inplace";
+    private static final String NESTED_PARALLELISM_KEY = "fatjar.nested.parallelism";
+    private static final String PRELOAD_KEY            = "fatjar.preload";
+    private static final String PRELOAD_THREADS_KEY    = "fatjar.preload.threads";
+    private static final String PRELOAD_DEFINE_KEY     = "fatjar.preload.define";
+    private static final String JMX_KEY                = "fatjar.jmx";
+    private static final String JAR_FILE_IDLE_KEY      = "fatjar.jarfile.idle";
+    private static final String NOT_FOUND_SIZE_KEY     = "fatjar.url.notfound.size";
+    private static final String NOT_FOUND_TTL_KEY      = "fatjar.url.notfound.ttl";
+    private static final String RESOURCE_CACHE_MAX_KEY = "fatjar.resource.cache.max";
+    private static final String TEMP_VERIFY_KEY        = "fatjar.temp.verify";
+
+    private static final int    resourceCacheMaxSize   = getInt(RESOURCE_CACHE_MAX_KEY, 64 * 1024);
 
     static {
         if (logger.isDebugEnabled()) {
@@ -53,6 +67,129 @@ class FatJarSystemConfig {
         }
     }
 
+    /**
+     * log lines are written by a background thread if it's set true
+     */
+    public static boolean isLogAsync() {
+        return Boolean.parseBoolean(get(LOG_ASYNC_KEY));
+    }
+
+    /**
+     * stored nested jars are read in place from the mapped fat jar unless it's set false
+     */
+    public static boolean isReadNestedJarsInPlace() {
+        String value = get(IN_PLACE_KEY);
+        return value == null || Boolean.parseBoolean(value);
+    }
+
+    /**
+     * the number of threads which open nested jars at boot, 1 by default, 0 means the number of processors
+     */
+    public static int getNestedJarParallelism() {
+        return getThreadCount(NESTED_PARALLELISM_KEY, 1);
+    }
+
+    /**
+     * <code>record</code>: record the classes and resources served during a boot; <code>replay</code>: preload the
+     * recorded ones on background threads; <code>auto</code>: replay if a profile has been recorded, otherwise record.
+     *
+     * @return the mode, or null if preloading is off
+     */
+    public static String getPreloadMode() {
+        String mode = get(PRELOAD_KEY);
+        if (mode == null || "off".equals(mode)) {
+            return null;
+        }
+        if ("record".equals(mode) || "replay".equals(mode) || "auto".equals(mode)) {
+            return mode;
+        }
+        if (logger.isWarnEnabled()) {
+            logger.warn("invalid " + PRELOAD_KEY + " '" + mode + "', preloading is off");
+        }
+        return null;
+    }
+
+    /**
+     * the number of threads which replay a preload profile, 2 by default, 0 means the number of processors
+     */
+    public static int getPreloadThreads() {
+        return getThreadCount(PRELOAD_THREADS_KEY, 2);
+    }
+
+    /**
+     * replaying threads define the classes too if it's set true, otherwise they only read them
+     */
+    public static boolean isPreloadDefineClasses() {
+        return Boolean.parseBoolean(get(PRELOAD_DEFINE_KEY));
+    }
+
+    /**
+     * the metrics of the class loaders are registered as MBeans if it's set true
+     */
+    public static boolean isJmxEnabled() {
+        return Boolean.parseBoolean(get(JMX_KEY));
+    }
+
+    /**
+     * the seconds a jar file opened for <code>jar:</code> urls stays open once it's no longer used, 60 by default
+     */
+    public static int getJarFileIdleSeconds() {
+        return getInt(JAR_FILE_IDLE_KEY, 60);
+    }
+
+    /**
+     * the number of missing <code>jar:</code> urls which are remembered, 10000 by default, 0 means none
+     */
+    public static int getURLNotFoundCacheSize() {
+        return getInt(NOT_FOUND_SIZE_KEY, 10000);
+    }
+
+    /**
+     * the seconds a missing <code>jar:</code> url is remembered, 0 by default which means until its jar changes
+     */
+    public static int getURLNotFoundCacheTtlSeconds() {
+        return getInt(NOT_FOUND_TTL_KEY, 0);
+    }
+
+    /**
+     * the largest resource, in bytes, which is kept in memory once read, 65536 by default; larger ones are streamed
+     * from their jars every time
+     */
+    public static int getResourceCacheMaxSize() {
+        return resourceCacheMaxSize;
+    }
+
+    /**
+     * an extracted nested jar is checked against the crc of its entry before it's reused if it's set true, otherwise
+     * only its size is checked
+     */
+    public static boolean isVerifyTempFiles() {
+        return Boolean.parseBoolean(get(TEMP_VERIFY_KEY));
+    }
+
+    private static int getThreadCount(String key, int defaultValue) {
+        int count = getInt(key, defaultValue);
+        if (count <= 0) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return count;
+    }
+
+    private static int getInt(String key, int defaultValue) {
+        String value = get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("invalid " + key + " '" + value + "', " + defaultValue + " is used");
+            }
+            return defaultValue;
+        }
+    }
+
     private static String get(String key) {
         String str = System.getProperty(key);
         if (str == null) {
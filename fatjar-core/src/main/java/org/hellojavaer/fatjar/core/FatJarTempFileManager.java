@@ -16,14 +16,20 @@
 package org.hellojavaer.fatjar.core;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLEncoder;
-import java.util.HashMap;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.zip.CRC32;
 
 /**
  *
@@ -31,20 +37,30 @@ import java.util.jar.JarFile;
  */
 class FatJarTempFileManager {
 
-    private static Logger                         logger                     = new Logger();
+    private static Logger                                  logger                     = new Logger();
 
-    private static final String                   FATJAR_TEMP_FILE_BASE_PATH = "/.fatjar";
+    private static final String                            FATJAR_TEMP_FILE_BASE_PATH = "/.fatjar";
 
-    private static final String                   FATJAR_TEMP_FILE_LIB_PATH  = FATJAR_TEMP_FILE_BASE_PATH + "/temp/lib";
+    private static final String                            FATJAR_TEMP_FILE_LIB_PATH  = FATJAR_TEMP_FILE_BASE_PATH
+                                                                                        + "/temp/lib";
 
-    private static volatile File                  createdTempDir;
+    private static final String                            FATJAR_PROFILE_PATH        = FATJAR_TEMP_FILE_BASE_PATH
+                                                                                        + "/temp/profile";
 
-    private static String                         tempDir                    = System.getProperty("user.home");
+    private static final String                            TEMP_FILE_SUFFIX           = ".tmp";
+    // older ones can't be still being written
+    private static final long                              STALE_TEMP_FILE_MILLIS     = 24 * 60 * 60 * 1000L;
 
-    private static AtomicBoolean                  inited                     = new AtomicBoolean(false);
+    private static volatile File                           createdTempDir;
+
+    private static String                                  tempDir                    = System.getProperty("user.home");
+
+    private static AtomicBoolean                           inited                     = new AtomicBoolean(false);
 
     // key:'file:/a/b.jar!/c/d.jar'
-    private static final Map<String, FileWrapper> fileMap                    = new HashMap<>();
+    private static final Map<String, FileWrapper>          fileMap                    = new ConcurrentHashMap<>();
+    // key: temporary file name, different files are built concurrently; a lock is removed once no thread holds it
+    private static final ConcurrentMap<String, LockObject> fileLocks                  = new ConcurrentHashMap<>();
 
     static {
         if (logger.isDebugEnabled()) {
@@ -74,6 +90,7 @@ class FatJarTempFileManager {
 
         //
         if (inited.compareAndSet(false, true)) {
+            deleteStaleTempFiles();
             if (logger.isInfoEnabled()) {
                 logger.info(String.format("[createTempDir] temporary direcotry is at %s", tempDir
                                                                                           + FATJAR_TEMP_FILE_BASE_PATH));
@@ -82,55 +99,208 @@ class FatJarTempFileManager {
     }
 
     /**
-     * use fileName and lastModified identify a file
+     * Extracts a nested jar, or reuses the file it's been extracted to before.
+     *
+     * <p>
+     * The file is named by the crc and the size of the entry, so a library which is nested in several fat jars, or in
+     * several builds of one, is extracted once. It's reused if it has that size, and that crc too if
+     * <code>fatjar.temp.verify</code> is set. A jar built before for the same path is reused only if it was extracted
+     * from an entry of that crc and size, so a fat jar which is replaced at its path gets its new nested jars. The
+     * content is written to a temporary file which is renamed once it's complete and matches the entry, so a JVM which
+     * dies while extracting leaves no file behind to be reused.
+     *
+     * @param fullFilePath e.g. /a/b.jar!/c/d.jar
+     * @param jarFile the jar which contains the entry
      */
-    public static JarFile buildJarFile(String fullFilePath, long lastModified, InputStream inputStream)
-                                                                                                       throws IOException {
+    public static JarFile buildJarFile(String fullFilePath, JarFile jarFile, JarEntry jarEntry) throws IOException {
         initTempFileDir();
-        String fileName = fullFilePath.substring(fullFilePath.lastIndexOf('/') + 1, fullFilePath.length());
+        long crc = jarEntry.getCrc();
+        long size = jarEntry.getSize();
         FileWrapper fileWrapper = fileMap.get(fullFilePath);
-        if (fileWrapper != null) {
+        if (fileWrapper != null && fileWrapper.matches(crc, size)) {
             return fileWrapper.getJarFile();
         }
-        synchronized (fileMap) {
-            fileWrapper = fileMap.get(fullFilePath);
-            if (fileWrapper != null) {
-                return fileWrapper.getJarFile();
+        String fileName = fullFilePath.substring(fullFilePath.lastIndexOf('/') + 1, fullFilePath.length());
+        // unknown if the entry hasn't been read from a central directory, then they're known once it's extracted
+        String tempFileName = crc < 0 || size < 0 ? null : getTempFileName(fileName, crc, size);
+        // nested jars of different fat jars may share a temporary file
+        String lockKey = tempFileName != null ? tempFileName : fullFilePath;
+        LockObject lock = acquireLock(lockKey);
+        try {
+            synchronized (lock) {
+                fileWrapper = fileMap.get(fullFilePath);
+                if (fileWrapper != null && fileWrapper.matches(crc, size)) {
+                    return fileWrapper.getJarFile();
+                }
+                File file = tempFileName != null ? new File(createdTempDir, tempFileName) : null;
+                if (file != null && isReusable(file, crc, size)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug(String.format("link %s to %s", fullFilePath, file.getAbsolutePath()));
+                    }
+                } else {
+                    file = extract(fullFilePath, fileName, jarFile, jarEntry);
+                }
+                JarFile builtJarFile = new JarFile(file);
+                // the jar built for a replaced fat jar is left open, its class loaders may still read it
+                fileMap.put(fullFilePath, new FileWrapper(file, builtJarFile, crc, size));
+                return builtJarFile;
             }
-            //
-            int lastIndexOfDot = fileName.lastIndexOf('.');
-            // standardize file name
-            if (lastModified < 0) {
-                lastModified = 0;
+        } finally {
+            releaseLock(lockKey, lock);
+        }
+    }
+
+    private static LockObject acquireLock(String key) {
+        while (true) {
+            LockObject lock = fileLocks.get(key);
+            if (lock == null) {
+                LockObject newLock = new LockObject();
+                lock = fileLocks.putIfAbsent(key, newLock);
+                if (lock == null) {
+                    lock = newLock;
+                }
             }
-            String fileNameWithLastModified = fileName.substring(0, lastIndexOfDot) + "-" + lastModified
-                                              + fileName.substring(lastIndexOfDot);
-            fileNameWithLastModified = URLEncoder.encode(fileNameWithLastModified, "UTF-8");
-            File file = new File(createdTempDir, fileNameWithLastModified);
-            if (file.exists()) {
-                JarFile jarFile = new JarFile(file);
-                fileMap.put(fullFilePath, new FileWrapper(file, jarFile));
-                if (logger.isDebugEnabled()) {
-                    logger.debug(String.format("link %s to %s", fullFilePath, file.getAbsolutePath()));
+            synchronized (lock) {
+                // a released lock has been removed from fileLocks, retry with a new one
+                if (lock.holders >= 0) {
+                    lock.holders++;
+                    return lock;
                 }
-                return jarFile;//
-            } else {
-                file.createNewFile();
-                if (logger.isDebugEnabled()) {
-                    logger.debug(String.format("decompress %s to %s", fullFilePath, file.getAbsolutePath()));
+            }
+        }
+    }
+
+    private static void releaseLock(String key, LockObject lock) {
+        synchronized (lock) {
+            lock.holders--;
+            if (lock.holders == 0) {
+                lock.holders = -1;
+                fileLocks.remove(key, lock);
+            }
+        }
+    }
+
+    private static File extract(String fullFilePath, String fileName, JarFile jarFile, JarEntry jarEntry)
+                                                                                                         throws IOException {
+        File tempFile = File.createTempFile(fileName + "-", TEMP_FILE_SUFFIX, createdTempDir);
+        try {
+            CRC32 crc32 = new CRC32();
+            long size = 0;
+            InputStream inputStream = jarFile.getInputStream(jarEntry);
+            try {
+                FileOutputStream tempOut = new FileOutputStream(tempFile);
+                try {
+                    int n;
+                    byte[] buffer = new byte[8192];
+                    while ((n = inputStream.read(buffer)) != -1) {
+                        crc32.update(buffer, 0, n);
+                        tempOut.write(buffer, 0, n);
+                        size += n;
+                    }
+                } finally {
+                    tempOut.close();
+                }
+            } finally {
+                inputStream.close();
+            }
+            long crc = crc32.getValue();
+            if ((jarEntry.getCrc() >= 0 && jarEntry.getCrc() != crc)
+                || (jarEntry.getSize() >= 0 && jarEntry.getSize() != size)) {
+                throw new IOException(fullFilePath + " is corrupted, its crc or size doesn't match its entry");
+            }
+            File file = new File(createdTempDir, getTempFileName(fileName, crc, size));
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("decompress %s to %s", fullFilePath, file.getAbsolutePath()));
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // e.g. it's been extracted and opened by another JVM meanwhile on windows
+                if (!isReusable(file, crc, size)) {
+                    throw e;
                 }
             }
-            //
-            FileOutputStream tempOut = new FileOutputStream(file);
+            return file;
+        } finally {
+            // nothing is left after a rename
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * e.g. d-1a2b3c4d-1024.jar
+     */
+    private static String getTempFileName(String fileName, long crc, long size) throws IOException {
+        int lastIndexOfDot = fileName.lastIndexOf('.');
+        if (lastIndexOfDot < 0) {
+            lastIndexOfDot = fileName.length();
+        }
+        String tempFileName = fileName.substring(0, lastIndexOfDot) + "-" + Long.toHexString(crc) + "-" + size
+                              + fileName.substring(lastIndexOfDot);
+        return URLEncoder.encode(tempFileName, "UTF-8");
+    }
+
+    private static boolean isReusable(File file, long crc, long size) throws IOException {
+        if (!file.isFile() || file.length() != size) {
+            return false;
+        }
+        if (!FatJarSystemConfig.isVerifyTempFiles()) {
+            return true;
+        }
+        CRC32 crc32 = new CRC32();
+        InputStream inputStream = new FileInputStream(file);
+        try {
             int n;
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[8192];
             while ((n = inputStream.read(buffer)) != -1) {
-                tempOut.write(buffer, 0, n);
+                crc32.update(buffer, 0, n);
             }
-            JarFile jarFile = new JarFile(file);
-            fileMap.put(fullFilePath, new FileWrapper(file, jarFile));
-            return jarFile;
+        } finally {
+            inputStream.close();
+        }
+        if (crc32.getValue() != crc) {
+            if (logger.isWarnEnabled()) {
+                logger.warn(String.format("[buildJarFile] %s is corrupted, it's extracted again",
+                                          file.getAbsolutePath()));
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the temporary files left by the JVMs which died while extracting.
+     */
+    private static void deleteStaleTempFiles() {
+        File[] files = createdTempDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long expired = System.currentTimeMillis() - STALE_TEMP_FILE_MILLIS;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX) && file.lastModified() < expired) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the preload profile of a fat jar, next to its extracted nested jars
+     */
+    public static File getPreloadProfileFile(File fatJarFile) throws IOException {
+        File profileDir = new File(tempDir + FATJAR_PROFILE_PATH);
+        if (!profileDir.exists()) {
+            profileDir.mkdirs();
+        }
+        String fileName = fatJarFile.getName();
+        int lastIndexOfDot = fileName.lastIndexOf('.');
+        if (lastIndexOfDot > 0) {
+            fileName = fileName.substring(0, lastIndexOfDot);
         }
+        // fat jars of the same name at different places have different profiles
+        String profileName = fileName + "-" + Math.max(fatJarFile.lastModified(), 0) + "-"
+                             + Integer.toHexString(fatJarFile.getAbsolutePath().hashCode()) + ".profile";
+        return new File(profileDir, URLEncoder.encode(profileName, "UTF-8"));
     }
 
     public static JarFile getJarFile(String key) {
@@ -142,15 +312,32 @@ class FatJarTempFileManager {
         }
     }
 
+    private static class LockObject {
+
+        private int holders = 0;
+    }
+
     private static class FileWrapper {
 
-        public FileWrapper(File file, JarFile jarFile) {
+        public FileWrapper(File file, JarFile jarFile, long crc, long size) {
             this.file = file;
             this.jarFile = jarFile;
+            this.crc = crc;
+            this.size = size;
         }
 
-        private File    file;
-        private JarFile jarFile;
+        private File       file;
+        private JarFile    jarFile;
+        // of the entry it's been extracted from, -1 if unknown
+        private final long crc;
+        private final long size;
+
+        /**
+         * @return true if it's been extracted from an entry of the crc and the size, or either is unknown
+         */
+        public boolean matches(long crc, long size) {
+            return crc < 0 || size < 0 || this.crc < 0 || this.size < 0 || (this.crc == crc && this.size == size);
+        }
 
         public File getFile() {
             return file;
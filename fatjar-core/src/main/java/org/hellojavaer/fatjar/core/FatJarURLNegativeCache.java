@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The <code>jar:</code> urls which have been found missing, so that probing them again doesn't open their jars.
+ *
+ * <p>
+ * An url is forgotten when the outer jar it was missing from has been modified or replaced, which is checked at most
+ * once per {@link #CHECK_INTERVAL_MILLIS} for each url, or when it's older than the time to live if there is one. Once
+ * the cache is full a quarter of it is dropped, in no particular order.
+ */
+class FatJarURLNegativeCache {
+
+    private static final long                   CHECK_INTERVAL_MILLIS = 1000;
+
+    // counter indexes, misses are counted by every connect so the counters are striped
+    private static final int                    HITS                  = 0;
+    private static final int                    MISSES                = 1;
+
+    private final int                           maxSize;
+    private final long                          ttlMillis;
+    // key: the file of the url
+    private final ConcurrentMap<String, Record> records               = new ConcurrentHashMap<>();
+    private final FatJarStripedCounters         counters              = new FatJarStripedCounters(2);
+
+    /**
+     * @param ttlMillis 0 if the urls don't expire
+     */
+    public FatJarURLNegativeCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param rootFile the outer jar of the url
+     */
+    public boolean contains(String url, File rootFile) {
+        Record record = records.get(url);
+        if (record != null) {
+            long now = System.currentTimeMillis();
+            if (ttlMillis > 0 && now - record.created >= ttlMillis) {
+                records.remove(url, record);
+            } else if (now - record.lastChecked >= CHECK_INTERVAL_MILLIS && !record.isValid(rootFile, now)) {
+                records.remove(url, record);
+            } else {
+                counters.increment(HITS);
+                return true;
+            }
+        }
+        counters.increment(MISSES);
+        return false;
+    }
+
+    public void add(String url, File rootFile) {
+        if (maxSize <= 0) {
+            return;
+        }
+        if (records.size() >= maxSize) {
+            Iterator<String> iterator = records.keySet().iterator();
+            for (int i = maxSize / 4; i >= 0 && iterator.hasNext(); i--) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        records.put(url, new Record(rootFile.lastModified(), rootFile.length()));
+    }
+
+    public long getHits() {
+        return counters.get(HITS);
+    }
+
+    public long getMisses() {
+        return counters.get(MISSES);
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    private static class Record {
+
+        private final long    created = System.currentTimeMillis();
+        private final long    lastModified;
+        private final long    length;
+        private volatile long lastChecked;
+
+        public Record(long lastModified, long length) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.lastChecked = created;
+        }
+
+        public boolean isValid(File rootFile, long now) {
+            lastChecked = now;
+            return rootFile.lastModified() == lastModified && rootFile.length() == length;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarFile;
+
+/**
+ * The jar part of a <code>jar:</code> url, e.g. <code>file:/a/b.jar!/lib/c.jar</code>, parsed once into the outer jar
+ * and the chain of nested jars. The innermost nested jar is kept once it's been extracted, so reconnecting to an entry
+ * of a known nested jar is a map lookup. It's dropped once the outer jar has been modified or replaced, which is checked
+ * at most once per {@link #CHECK_INTERVAL_MILLIS}.
+ *
+ * <p>
+ * At most {@link #MAX_PATHS} paths are kept, once there are as many a quarter of them is dropped, in no particular
+ * order.
+ */
+class FatJarURLPath {
+
+    private static final String                               SEPARATOR             = "!/";
+    private static final String                               FILE_PROTOCOL         = "file:";
+
+    // urls of any number of jars can be asked for, the paths beyond this are evicted
+    private static final int                                  MAX_PATHS             = 4096;
+    // the outer jar isn't checked for changes more often than this
+    private static final long                                 CHECK_INTERVAL_MILLIS = 1000;
+
+    // key: jar part of the url
+    private static final ConcurrentMap<String, FatJarURLPath> paths                 = new ConcurrentHashMap<>();
+
+    private final File                                        rootFile;
+    // e.g. lib/c.jar
+    private final String[]                                    nestedJarNames;
+    // e.g. /a/b.jar!/lib/c.jar, the keys of FatJarTempFileManager
+    private final String[]                                    nestedJarPaths;
+    private volatile String                                   canonicalRootPath;
+    private volatile NestedJarFile                            nestedJarFile         = null;
+
+    private FatJarURLPath(String jarPath) {
+        int end = jarPath.indexOf(SEPARATOR);
+        if (end < 0) {
+            end = jarPath.length();
+        }
+        String rootFilePath = jarPath.substring(FILE_PROTOCOL.length(), end);
+        this.rootFile = new File(rootFilePath);
+        int count = 0;
+        for (int i = end; i >= 0 && i < jarPath.length(); i = jarPath.indexOf(SEPARATOR, i + SEPARATOR.length())) {
+            count++;
+        }
+        this.nestedJarNames = new String[count];
+        this.nestedJarPaths = new String[count];
+        for (int i = 0; i < count; i++) {
+            int start = end + SEPARATOR.length();
+            end = jarPath.indexOf(SEPARATOR, start);
+            if (end < 0) {
+                end = jarPath.length();
+            }
+            nestedJarNames[i] = jarPath.substring(start, end);
+            nestedJarPaths[i] = jarPath.substring(FILE_PROTOCOL.length(), end);
+        }
+    }
+
+    /**
+     * @param jarPath the part of the url file before the last <code>!/</code>, e.g.
+     *            <code>file:/a/b.jar!/lib/c.jar</code>
+     */
+    public static FatJarURLPath get(String jarPath) {
+        FatJarURLPath path = paths.get(jarPath);
+        if (path == null) {
+            path = new FatJarURLPath(jarPath);
+            if (paths.size() >= MAX_PATHS) {
+                Iterator<String> iterator = paths.keySet().iterator();
+                for (int i = MAX_PATHS / 4; i >= 0 && iterator.hasNext(); i--) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+            FatJarURLPath previous = paths.putIfAbsent(jarPath, path);
+            if (previous != null) {
+                path = previous;
+            }
+        }
+        return path;
+    }
+
+    public File getRootFile() {
+        return rootFile;
+    }
+
+    /**
+     * @return the canonical path of the outer jar, resolved once
+     */
+    public String getCanonicalRootPath() throws IOException {
+        String path = canonicalRootPath;
+        if (path == null) {
+            path = rootFile.getCanonicalPath();
+            canonicalRootPath = path;
+        }
+        return path;
+    }
+
+    /**
+     * @return true for a plain <code>jar:file:/a/b.jar!/entry</code> url
+     */
+    public boolean isNormal() {
+        return nestedJarNames.length == 0;
+    }
+
+    public int getNestedJarCount() {
+        return nestedJarNames.length;
+    }
+
+    public String getNestedJarName(int i) {
+        return nestedJarNames[i];
+    }
+
+    public String getNestedJarPath(int i) {
+        return nestedJarPaths[i];
+    }
+
+    /**
+     * @return the innermost nested jar, or null if it hasn't been extracted from the current outer jar
+     */
+    public JarFile getNestedJarFile() {
+        NestedJarFile nested = nestedJarFile;
+        if (nested == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - nested.lastChecked >= CHECK_INTERVAL_MILLIS) {
+            nested.lastChecked = now;
+            if (rootFile.lastModified() != nested.lastModified || rootFile.length() != nested.length) {
+                nestedJarFile = null;
+                return null;
+            }
+        }
+        return nested.jarFile;
+    }
+
+    /**
+     * @param lastModified the last modified time of the outer jar, read before the nested jar was extracted
+     * @param length the length of the outer jar, read with <code>lastModified</code>
+     */
+    public void setNestedJarFile(JarFile jarFile, long lastModified, long length) {
+        this.nestedJarFile = new NestedJarFile(jarFile, lastModified, length);
+    }
+
+    private static class NestedJarFile {
+
+        private final JarFile jarFile;
+        private final long    lastModified;
+        private final long    length;
+        private volatile long lastChecked = System.currentTimeMillis();
+
+        public NestedJarFile(JarFile jarFile, long lastModified, long length) {
+            this.jarFile = jarFile;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
@@ -22,8 +22,7 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.security.cert.Certificate;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -40,8 +39,6 @@ class FatJarURLStreamHandler extends URLStreamHandler {
 
     private static final String SEPARATOR                = "!/";
 
-    private static final String FILE_PROTOCOL            = "file:";
-
     private URLStreamHandler    fallbackURLStreamHandler = null;
 
     static {
@@ -50,6 +47,10 @@ class FatJarURLStreamHandler extends URLStreamHandler {
         }
         //
         Class<?> clazz = FatJarURLConnection.class;
+        clazz = FatJarJarFileCache.class;
+        clazz = FatJarJarFileCache.CachedJarFile.class;
+        clazz = FatJarURLPath.class;
+        clazz = FatJarURLNegativeCache.class;
     }
 
     public FatJarURLStreamHandler() {
@@ -86,17 +87,31 @@ class FatJarURLStreamHandler extends URLStreamHandler {
         }
     }
 
+    /**
+     * @return the <code>jar:</code> urls which have been found missing, shared by all the handlers of this class
+     */
+    static FatJarURLNegativeCache getNotFoundResources() {
+        return FatJarURLConnection.notFoundResources;
+    }
+
     private static class FatJarURLConnection extends JarURLConnection {
 
-        private JarFile            jarFile;
-        private String             entryName;
-        private Manifest           manifest;
-        private JarEntry           jarEntry;
-        private boolean            normalJarUrl;
-        private static Set<String> notFoundResources = new HashSet<>();
+        private JarFile                          jarFile;
+        // the shared jar file of a normal jar url, only held by the streams and pinned by getJarFile()
+        private FatJarJarFileCache.CachedJarFile cachedJarFile;
+        private FatJarURLPath                    path;
+        // the jar file opened by a normal jar url which doesn't use caches is closed with its first stream
+        private final AtomicBoolean              released          = new AtomicBoolean();
+        private String                           entryName;
+        private Manifest                         manifest;
+        private JarEntry                         jarEntry;
+        private boolean                          normalJarUrl;
+        private static FatJarURLNegativeCache    notFoundResources;
 
         static {
             Class<?> clazz = JarURLInputStream.class;
+            notFoundResources = new FatJarURLNegativeCache(FatJarSystemConfig.getURLNotFoundCacheSize(),
+                                                           FatJarSystemConfig.getURLNotFoundCacheTtlSeconds() * 1000L);
         }
 
         protected FatJarURLConnection(URL url) throws IOException {
@@ -109,12 +124,17 @@ class FatJarURLStreamHandler extends URLStreamHandler {
         @Override
         public JarFile getJarFile() throws IOException {
             this.connect();
-            if (jarFile == null) {
-                throw new FileNotFoundException("JAR entry " + this.entryName + " not found in "
-                                                + this.jarFile.getName());
-            } else {
-                return jarFile;
+            if (cachedJarFile != null) {
+                synchronized (this) {
+                    // the caller may use it at any time, so it isn't closed when it's idle, only once its file changes
+                    if (!cachedJarFile.pin()) {
+                        FatJarJarFileCache.CachedJarFile cached = reacquireJarFile();
+                        cached.pin();
+                        cached.release();
+                    }
+                }
             }
+            return jarFile;
         }
 
         @Override
@@ -123,49 +143,62 @@ class FatJarURLStreamHandler extends URLStreamHandler {
                 synchronized (this) {
                     if (!this.connected) {
                         String fileString = url.getFile();
-                        if (notFoundResources.contains(fileString)) {
-                            return;
-                        }
-
-                        String[] pathSections = fileString.split(SEPARATOR);
-                        String rootFileDir = pathSections[0].substring(FILE_PROTOCOL.length());
-                        if (fileString.endsWith("!/")) {
+                        int index = fileString.lastIndexOf(SEPARATOR);
+                        FatJarURLPath path = FatJarURLPath.get(fileString.substring(0, index));
+                        this.path = path;
+                        if (index + SEPARATOR.length() == fileString.length()) {
                             this.entryName = null;
                         } else {
-                            if (pathSections.length <= 2) {// normal jar protocol
-                                this.normalJarUrl = true;
-                            }
-                            this.entryName = pathSections[pathSections.length - 1];
+                            this.entryName = fileString.substring(index + SEPARATOR.length());
                         }
-
-                        JarFile jarFile = null;
-                        if (!normalJarUrl) {//
-                            jarFile = FatJarTempFileManager.getJarFile(fileString);
+                        this.normalJarUrl = path.isNormal();
+                        if (notFoundResources.contains(fileString, path.getRootFile())) {
+                            throw new FileNotFoundException("JAR entry " + fileString + " not found");
                         }
-                        if (jarFile == null) {
-                            File file = new File(rootFileDir);
-                            if (file.isDirectory()) {
-                                throw new FileNotFoundException(rootFileDir + " (Is a directory)");
+
+                        JarFile jarFile;
+                        if (normalJarUrl) {
+                            if (getUseCaches()) {
+                                this.cachedJarFile = FatJarJarFileCache.acquire(path.getRootFile(),
+                                                                                path.getCanonicalRootPath());
+                                jarFile = cachedJarFile.getJarFile();
+                            } else {
+                                jarFile = new JarFile(path.getRootFile());
                             }
-                            jarFile = new JarFile(file);
-                            String tempPath = rootFileDir;// file:/a/b/c
-                            for (int i = 1; i < pathSections.length - 1; i++) {//
-                                String entryName0 = pathSections[i];
-                                tempPath = tempPath + SEPARATOR + entryName0;
-                                JarEntry jarEntry = jarFile.getJarEntry(entryName0);
-                                if (jarEntry == null) {
-                                    notFoundResources.add(tempPath);
-                                    return;
-                                } else {
-                                    jarFile = FatJarTempFileManager.buildJarFile(tempPath, jarEntry.getTime(),
-                                                                                 jarFile.getInputStream(jarEntry));
+                        } else {
+                            jarFile = path.getNestedJarFile();
+                            if (jarFile == null) {
+                                // the nested jars are extracted, the outer one is only needed meanwhile
+                                FatJarJarFileCache.CachedJarFile cached;
+                                cached = FatJarJarFileCache.acquire(path.getRootFile(), path.getCanonicalRootPath());
+                                try {
+                                    jarFile = openNestedJarFile(cached, path);
+                                } finally {
+                                    cached.release();
+                                }
+                                if (jarFile == null) {
+                                    notFoundResources.add(fileString, path.getRootFile());
+                                    throw new FileNotFoundException("JAR entry " + fileString + " not found");
                                 }
                             }
                         }
                         this.jarFile = jarFile;
-                        this.manifest = jarFile.getManifest();
-                        if (this.entryName != null) {
-                            this.jarEntry = jarFile.getJarEntry(entryName);
+                        try {
+                            if (this.entryName != null) {
+                                this.jarEntry = jarFile.getJarEntry(entryName);
+                                if (this.jarEntry == null) {
+                                    notFoundResources.add(fileString, path.getRootFile());
+                                    closeJarFile();
+                                    throw new FileNotFoundException("JAR entry " + entryName + " not found in "
+                                                                    + jarFile.getName());
+                                }
+                            }
+                            this.manifest = jarFile.getManifest();
+                        } finally {
+                            // held again by each stream, so a connection which opens none doesn't keep it open
+                            if (cachedJarFile != null) {
+                                cachedJarFile.release();
+                            }
                         }
                         //
                         this.connected = true;
@@ -174,13 +207,84 @@ class FatJarURLStreamHandler extends URLStreamHandler {
             }
         }
 
+        /**
+         * @return null if an entry of the chain isn't found
+         */
+        private JarFile openNestedJarFile(FatJarJarFileCache.CachedJarFile cached, FatJarURLPath path)
+                                                                                                      throws IOException {
+            JarFile jarFile = cached.getJarFile();
+            for (int i = 0; i < path.getNestedJarCount(); i++) {
+                JarEntry jarEntry = jarFile.getJarEntry(path.getNestedJarName(i));
+                if (jarEntry == null) {
+                    return null;
+                } else {
+                    jarFile = FatJarTempFileManager.buildJarFile(path.getNestedJarPath(i), jarFile, jarEntry);
+                }
+            }
+            // dropped once the outer jar isn't the one it was extracted from
+            path.setNestedJarFile(jarFile, cached.getLastModified(), cached.getLength());
+            return jarFile;
+        }
+
+        /**
+         * Closes the jar file which a normal jar url has opened for itself, at most once.
+         */
+        private void closeJarFile() throws IOException {
+            if (cachedJarFile == null && normalJarUrl && released.compareAndSet(false, true)) {
+                jarFile.close();
+            }
+        }
+
+        /**
+         * Acquires the shared jar file again, once the one which was connected to has been closed because it was idle
+         * or its file has changed.
+         *
+         * @return the jar file, retained
+         */
+        private FatJarJarFileCache.CachedJarFile reacquireJarFile() throws IOException {
+            FatJarJarFileCache.CachedJarFile cached = FatJarJarFileCache.acquire(path.getRootFile(),
+                                                                                 path.getCanonicalRootPath());
+            JarEntry newJarEntry = null;
+            if (entryName != null) {
+                newJarEntry = cached.getJarFile().getJarEntry(entryName);
+                if (newJarEntry == null) {
+                    cached.release();
+                    throw new FileNotFoundException("JAR entry " + entryName + " not found in "
+                                                    + cached.getJarFile().getName());
+                }
+            }
+            cachedJarFile = cached;
+            jarFile = cached.getJarFile();
+            jarEntry = newJarEntry;
+            return cached;
+        }
+
         @Override
         public InputStream getInputStream() throws IOException {
             connect();
             if (this.entryName == null) {
                 throw new IOException("no entry name specified");
-            } else {
-                return new JarURLInputStream(getJarFile().getInputStream(getJarEntry()));
+            }
+            if (cachedJarFile == null) {
+                return new JarURLInputStream(jarFile.getInputStream(jarEntry), null);
+            }
+            FatJarJarFileCache.CachedJarFile cached;
+            JarFile streamJarFile;
+            JarEntry streamJarEntry;
+            synchronized (this) {
+                // every stream holds the shared jar file until it's closed
+                cached = cachedJarFile.retain() ? cachedJarFile : reacquireJarFile();
+                streamJarFile = jarFile;
+                streamJarEntry = jarEntry;
+            }
+            try {
+                return new JarURLInputStream(streamJarFile.getInputStream(streamJarEntry), cached);
+            } catch (IOException e) {
+                cached.release();
+                throw e;
+            } catch (RuntimeException e) {
+                cached.release();
+                throw e;
             }
         }
 
@@ -234,16 +338,27 @@ class FatJarURLStreamHandler extends URLStreamHandler {
 
         class JarURLInputStream extends FilterInputStream {
 
-            JarURLInputStream(InputStream inputStream) {
+            // null if the jar file isn't shared
+            private final FatJarJarFileCache.CachedJarFile cached;
+            private boolean                                closed = false;
+
+            JarURLInputStream(InputStream inputStream, FatJarJarFileCache.CachedJarFile cached) {
                 super(inputStream);
+                this.cached = cached;
             }
 
             public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
                 try {
                     super.close();
                 } finally {
-                    if (FatJarURLConnection.this.normalJarUrl) {
-                        jarFile.close();
+                    if (cached != null) {
+                        cached.release();
+                    } else {
+                        closeJarFile();
                     }
                 }
             }
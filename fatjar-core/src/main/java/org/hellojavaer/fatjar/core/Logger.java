@@ -21,69 +21,89 @@ package org.hellojavaer.fatjar.core;
  */
 class Logger {
 
+    private static final int             BUFFER_CAPACITY = 8192;
+
+    // resolved once, see reloadLevel()
+    private static volatile int          level           = FatJarSystemConfig.getLogLevel();
+
+    // null if the lines are written by the logging threads
+    private static final FatJarLogWriter writer;
+
     static {
-        if (FatJarSystemConfig.getLogLevel() >= 3) {
+        writer = FatJarSystemConfig.isLogAsync() ? new FatJarLogWriter(BUFFER_CAPACITY) : null;
+        if (level >= 3) {
             System.out.println("DEBUG: [FatJar] -| Logger is loaded by " + Logger.class.getClassLoader());
         }
     }
 
-    public boolean isErrorEnabled() {
-        if (FatJarSystemConfig.getLogLevel() >= 0) {
-            return true;
-        } else {
-            return false;
+    /**
+     * Ends the background writer if there is one, the lines are written by the logging threads from then on.
+     */
+    public static void stopWriter() {
+        if (writer != null) {
+            writer.stop();
         }
     }
 
+    /**
+     * Reads <code>fatjar.log.level</code> again, the level is otherwise read once when this class is loaded.
+     */
+    public static void reloadLevel() {
+        level = FatJarSystemConfig.getLogLevel();
+    }
+
+    public boolean isErrorEnabled() {
+        return level >= 0;
+    }
+
     public void error(String msg) {
-        System.out.println("ERROR: [FatJar] -| " + msg);
+        write("ERROR: [FatJar] -| " + msg, true);
     }
 
     public boolean isWarnEnabled() {
-        if (FatJarSystemConfig.getLogLevel() >= 1) {
-            return true;
-        } else {
-            return false;
-        }
+        return level >= 1;
     }
 
     public void warn(String msg) {
-        System.out.println("WARN: [FatJar] —| " + msg);
+        write("WARN: [FatJar] —| " + msg, true);
     }
 
     public boolean isInfoEnabled() {
-        if (FatJarSystemConfig.getLogLevel() >= 2) {
-            return true;
-        } else {
-            return false;
-        }
+        return level >= 2;
     }
 
     public void info(String msg) {
-        System.out.println("INFO: [FatJar] -| " + msg);
+        write("INFO: [FatJar] -| " + msg, false);
     }
 
     public boolean isDebugEnabled() {
-        if (FatJarSystemConfig.getLogLevel() >= 3) {
-            return true;
-        } else {
-            return false;
-        }
+        return level >= 3;
     }
 
     public void debug(String msg) {
-        System.out.println("DEBUG: [FatJar] -| " + msg);
+        write("DEBUG: [FatJar] -| " + msg, false);
     }
 
     public boolean isTraceEnabled() {
-        if (FatJarSystemConfig.getLogLevel() >= 4) {
-            return true;
-        } else {
-            return false;
-        }
+        return level >= 4;
     }
 
     public void trace(String msg) {
-        System.out.println("TRACE: [FatJar] -| " + msg);
+        write("TRACE: [FatJar] -| " + msg, false);
+    }
+
+    /**
+     * @param important errors and warnings are written by the caller when the buffer is full, the others are dropped
+     */
+    private static void write(String line, boolean important) {
+        if (writer == null) {
+            System.out.println(line);
+        } else if (!writer.offer(line)) {
+            if (important || writer.isClosed()) {
+                System.out.println(line);
+            } else {
+                writer.drop();
+            }
+        }
     }
 }
@@ -15,6 +15,7 @@
  */
 package org.hellojavaer.fatjar.core.boot;
 
+import org.hellojavaer.fatjar.core.FatJarClassLoaderProxy;
 import org.hellojavaer.fatjar.core.FatJarClassLoaderUtils;
 
 /**
@@ -31,6 +32,10 @@ public class FatJarBoot {
         //
         classLoader = FatJarClassLoaderUtils.injectFatJarClassLoaderProxy();
         FatJarClassLoaderUtils.injectFatJarUrlProtocolHandler();
+        // there is no end of booting here, a recorded profile is saved when the JVM exits
+        if (classLoader instanceof FatJarClassLoaderProxy) {
+            ((FatJarClassLoaderProxy) classLoader).startPreloading();
+        }
     }
 
     public static ClassLoader run() {
@@ -15,6 +15,8 @@
  */
 package org.hellojavaer.fatjar.core.boot;
 
+import org.hellojavaer.fatjar.core.FatJarClassLoaderUtils;
+
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
@@ -35,6 +37,6 @@ public class FatJarServletContextListener extends FatJarBoot implements ServletC
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
-
+        FatJarClassLoaderUtils.stopLogWriter();
     }
 }
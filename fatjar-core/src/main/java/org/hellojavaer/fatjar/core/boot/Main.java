@@ -20,6 +20,7 @@ import org.hellojavaer.fatjar.core.FatJarClassLoaderUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
@@ -33,7 +34,10 @@ import java.util.jar.Manifest;
  */
 public class Main {
 
-    private static String START_CLASS_KEY = "Start-Class";
+    private static String START_CLASS_KEY            = "Start-Class";
+
+    private static String SHARED_ARCHIVE_SUFFIX      = ".jsa";
+    private static String SHARED_ARCHIVE_FILE_OPTION = "-XX:SharedArchiveFile=";
 
     static {
         System.out.println("INFO: [FatJar] -| Main is loaded by " + Main.class.getClassLoader());
@@ -43,6 +47,7 @@ public class Main {
                                           InvocationTargetException, IllegalAccessException {
         URL url = FatJarClassLoaderUtils.getLocatoin(Main.class);
         File fatJarFile = new File(url.getFile());
+        checkSharedArchive(fatJarFile);
         JarFile jar = new JarFile(fatJarFile);
         Manifest manifest = jar.getManifest();
         Attributes attributes = manifest.getMainAttributes();
@@ -53,9 +58,48 @@ public class Main {
         ClassLoader classLoader = Main.class.getClassLoader();
         FatJarClassLoader fatJarClassLoader = new FatJarClassLoader(jar, url, classLoader.getParent(), classLoader,
                                                                     false, true);
-        ClassLoader classLoader1 = FatJarClassLoaderUtils.injectFatJarClassLoader(classLoader, fatJarClassLoader);
+        fatJarClassLoader.startPreloading();
+        ClassLoader classLoader1;
+        try {
+            classLoader1 = FatJarClassLoaderUtils.injectFatJarClassLoader(classLoader, fatJarClassLoader);
+        } catch (IllegalStateException e) {
+            // the parent of the application class loader can't be replaced since java 12
+            System.out.println("WARN: [FatJar] -| " + e.getMessage() + ", load " + startClass + " by "
+                               + fatJarClassLoader);
+            classLoader1 = fatJarClassLoader;
+        }
         Class<?> mainClazz = Class.forName(startClass, true, classLoader1);
         Method invokeMethod = mainClazz.getMethod("main", String[].class);
         invokeMethod.invoke(null, (Object) args);
+        // the start class has booted the application when its main method returns
+        fatJarClassLoader.finishPreloading();
+    }
+
+    /**
+     * The cds goal of fatjar-maven-plugin dumps a class data sharing archive next to the fat jar. It can't be enabled
+     * after the JVM has started, so only tell whether it's used.
+     */
+    private static void checkSharedArchive(File fatJarFile) {
+        String name = fatJarFile.getName();
+        int pos = name.lastIndexOf('.');
+        File archiveFile = new File(fatJarFile.getParentFile(), (pos > 0 ? name.substring(0, pos) : name)
+                                                                + SHARED_ARCHIVE_SUFFIX);
+        if (!archiveFile.exists()) {
+            return;
+        }
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith(SHARED_ARCHIVE_FILE_OPTION)) {
+                System.out.println("INFO: [FatJar] -| class data sharing archive "
+                                   + argument.substring(SHARED_ARCHIVE_FILE_OPTION.length()) + " is specified");
+                return;
+            }
+        }
+        if (archiveFile.lastModified() < fatJarFile.lastModified()) {
+            System.out.println("WARN: [FatJar] -| class data sharing archive " + archiveFile
+                               + " is older than the fat jar, it should be dumped again");
+        } else {
+            System.out.println("INFO: [FatJar] -| start with " + SHARED_ARCHIVE_FILE_OPTION + archiveFile
+                               + " to share the classes archived by a training run");
+        }
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.maven.plugin;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dumps a dynamic class data sharing archive of a fat jar by a training run.
+ *
+ * <p>
+ * The fat jar is started with <code>-XX:ArchiveClassesAtExit</code>, which needs JDK 13 or later. The classes defined
+ * by FatJarClassLoader are archived as classes of a custom class loader, later starts with
+ * <code>-XX:SharedArchiveFile</code> skip parsing and verifying them. The archive is only valid for the same JDK and the
+ * same fat jar, it's written next to the fat jar with the extension <code>.jsa</code>, where boot.Main looks for it.
+ * The training run is stopped after {@link #trainingTimeout} seconds if it doesn't exit by itself, the archive is
+ * written when the JVM exits.
+ */
+@Mojo(name = "cds", defaultPhase = LifecyclePhase.PACKAGE, threadSafe = true)
+public class FatJarCdsMojo extends AbstractMojo {
+
+    private static final String ARCHIVE_SUFFIX = ".jsa";
+
+    @Parameter(defaultValue = "${project.build.directory}", required = true, readonly = true)
+    private File                targetDirectory;
+
+    @Parameter(defaultValue = "${project.build.finalName}.jar", required = true)
+    private String              fileName;
+
+    @Parameter(defaultValue = "${java.home}/bin/java", property = "cds.java", required = true)
+    private String              javaExecutable;
+
+    @Parameter(property = "cds.jvmArguments", required = false)
+    private List<String>        jvmArguments;
+
+    @Parameter(property = "cds.arguments", required = false)
+    private List<String>        arguments;
+
+    @Parameter(defaultValue = "60", property = "cds.trainingTimeout", required = false)
+    private int                 trainingTimeout;
+
+    @Parameter(defaultValue = "false", property = "cds.skip", required = false)
+    private boolean             skip;
+
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("skip dumping class data sharing archive");
+            return;
+        }
+        File jarFile = new File(targetDirectory, fileName);
+        if (!jarFile.exists()) {
+            throw new MojoExecutionException(jarFile + " doesn't exist, the cds goal must run after the build goal");
+        }
+        String baseName = fileName.endsWith(".jar") ? fileName.substring(0, fileName.length() - 4) : fileName;
+        File archiveFile = new File(targetDirectory, baseName + ARCHIVE_SUFFIX);
+        File logFile = new File(targetDirectory, baseName + "-cds-training.log");
+        if (archiveFile.exists() && !archiveFile.delete()) {
+            throw new MojoExecutionException("can't delete " + archiveFile);
+        }
+
+        List<String> command = new ArrayList<String>();
+        command.add(javaExecutable);
+        command.add("-XX:ArchiveClassesAtExit=" + archiveFile.getAbsolutePath());
+        if (jvmArguments != null) {
+            command.addAll(jvmArguments);
+        }
+        command.add("-jar");
+        command.add(jarFile.getAbsolutePath());
+        if (arguments != null) {
+            command.addAll(arguments);
+        }
+        getLog().info("training run: " + command);
+        getLog().info("output of the training run is written to " + logFile);
+
+        int exitValue;
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.directory(targetDirectory);
+            processBuilder.redirectErrorStream(true);
+            processBuilder.redirectOutput(logFile);
+            Process process = processBuilder.start();
+            exitValue = waitFor(process, trainingTimeout * 1000L);
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("training run is interrupted", e);
+        }
+        if (!archiveFile.exists()) {
+            throw new MojoExecutionException("training run exited with " + exitValue + " without dumping "
+                                             + archiveFile + ", dynamic class data sharing needs JDK 13 or later, see "
+                                             + logFile);
+        }
+        getLog().info("dumped " + archiveFile + " (" + archiveFile.length() / 1024 + " KB), start with"
+                      + " -XX:SharedArchiveFile=" + archiveFile.getName() + " -jar " + jarFile.getName()
+                      + " by the same JDK");
+    }
+
+    /**
+     * Process#waitFor(long, TimeUnit) doesn't exist before java 8
+     */
+    private int waitFor(Process process, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            try {
+                return process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                // still running
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                getLog().info("training run doesn't exit in " + timeoutMillis / 1000 + " seconds, stop it");
+                // terminate instead of kill, the archive is dumped by the exiting JVM
+                process.destroy();
+                return process.waitFor();
+            }
+            Thread.sleep(100);
+        }
+    }
+}
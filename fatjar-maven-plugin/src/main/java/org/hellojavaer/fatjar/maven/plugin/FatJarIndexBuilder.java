@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hellojavaer.fatjar.maven.plugin;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Builds the entry index which is written into a fat jar as {@link #INDEX_ENTRY_NAME}.
+ *
+ * <p>
+ * The index maps every entry name of the fat jar (ordinal 0) and of its nested jars (ordinal 1..n) to the jars which
+ * own it. Names are stored as 64-bit hashes in a minimal perfect hash table (hash and displace), so the runtime can
+ * route a lookup to the owning jar with one probe. The format must be kept in sync with
+ * org.hellojavaer.fatjar.core.FatJarEntryIndex. It's public for fatjar-benchmarks, which indexes the fat jars it
+ * generates.
+ */
+public class FatJarIndexBuilder {
+
+    public static final String               INDEX_ENTRY_NAME = "META-INF/fatjar.idx";
+
+    private static final int                 MAGIC            = 0x464a4958;            // FJIX
+    private static final int                 VERSION          = 1;
+
+    private static final int                 MAX_DISPLACEMENT = 1 << 24;
+
+    private final List<JarDescriptor>        jars             = new ArrayList<JarDescriptor>();
+    // key: entry name, value: owner ordinals in ascending order
+    private final Map<String, List<Integer>> entries          = new LinkedHashMap<String, List<Integer>>();
+
+    /**
+     * @return the ordinal of the nested jar, starting from 1
+     */
+    public int addJar(String name, boolean fatJar, long offset, long size, long crc) {
+        jars.add(new JarDescriptor(name, fatJar, offset, size, crc));
+        return jars.size();
+    }
+
+    public void addEntry(String name, int ordinal) {
+        List<Integer> owners = entries.get(name);
+        if (owners == null) {
+            owners = new ArrayList<Integer>(1);
+            entries.put(name, owners);
+        }
+        if (!owners.contains(ordinal)) {
+            owners.add(ordinal);
+        }
+    }
+
+    public void write(OutputStream outputStream) throws IOException {
+        // merge names which share the same hash, the runtime verifies every hit against the owning jar
+        Map<Long, SortedSet<Integer>> hashedEntries = new LinkedHashMap<Long, SortedSet<Integer>>();
+        for (Map.Entry<String, List<Integer>> entry : entries.entrySet()) {
+            Long hash = hash(entry.getKey());
+            SortedSet<Integer> owners = hashedEntries.get(hash);
+            if (owners == null) {
+                owners = new TreeSet<Integer>();
+                hashedEntries.put(hash, owners);
+            }
+            owners.addAll(entry.getValue());
+        }
+        int size = hashedEntries.size();
+        long[] keys = new long[size];
+        int[] values = new int[size];
+        List<Integer> multiOwners = new ArrayList<Integer>();
+        int i = 0;
+        for (Map.Entry<Long, SortedSet<Integer>> entry : hashedEntries.entrySet()) {
+            keys[i] = entry.getKey();
+            SortedSet<Integer> owners = entry.getValue();
+            if (owners.size() == 1) {
+                values[i] = owners.first();
+            } else {
+                values[i] = -(multiOwners.size() + 1);
+                multiOwners.add(owners.size());
+                multiOwners.addAll(owners);
+            }
+            i++;
+        }
+
+        int bucketCount = Math.max(1, (size + 3) / 4);
+        int[] displacements = new int[bucketCount];
+        long[] slotKeys = new long[size];
+        int[] slotValues = new int[size];
+        placeAll(keys, values, bucketCount, displacements, slotKeys, slotValues);
+
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(jars.size());
+        for (JarDescriptor jar : jars) {
+            out.writeUTF(jar.name);
+            out.writeBoolean(jar.fatJar);
+            out.writeLong(jar.offset);
+            out.writeLong(jar.size);
+            out.writeLong(jar.crc);
+        }
+        out.writeInt(size);
+        out.writeInt(bucketCount);
+        for (int displacement : displacements) {
+            out.writeInt(displacement);
+        }
+        for (int j = 0; j < size; j++) {
+            out.writeLong(slotKeys[j]);
+            out.writeInt(slotValues[j]);
+        }
+        out.writeInt(multiOwners.size());
+        for (Integer item : multiOwners) {
+            out.writeInt(item);
+        }
+        out.flush();
+    }
+
+    private static void placeAll(long[] keys, int[] values, int bucketCount, int[] displacements, long[] slotKeys,
+                                 int[] slotValues) {
+        int size = keys.length;
+        if (size == 0) {
+            return;
+        }
+        List<List<Integer>> buckets = new ArrayList<List<Integer>>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new ArrayList<Integer>(4));
+        }
+        for (int i = 0; i < size; i++) {
+            buckets.get(bucket(keys[i], bucketCount)).add(i);
+        }
+        Integer[] order = new Integer[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            order[i] = i;
+        }
+        final List<List<Integer>> buckets0 = buckets;
+        // place the biggest buckets first while the table is still sparse
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return buckets0.get(o2).size() - buckets0.get(o1).size();
+            }
+        });
+
+        boolean[] used = new boolean[size];
+        int[] slots = new int[4];
+        for (Integer bucketIndex : order) {
+            List<Integer> bucket = buckets.get(bucketIndex);
+            if (bucket.isEmpty()) {
+                break;
+            }
+            if (slots.length < bucket.size()) {
+                slots = new int[bucket.size()];
+            }
+            int displacement = 0;
+            while (true) {
+                if (displacement >= MAX_DISPLACEMENT) {
+                    throw new IllegalStateException("can't build perfect hash index for " + size + " entries");
+                }
+                boolean placed = true;
+                for (int j = 0; j < bucket.size(); j++) {
+                    int slot = slot(keys[bucket.get(j)], displacement, size);
+                    if (used[slot]) {
+                        placed = false;
+                    } else {
+                        for (int k = 0; k < j; k++) {
+                            if (slots[k] == slot) {
+                                placed = false;
+                                break;
+                            }
+                        }
+                    }
+                    if (!placed) {
+                        break;
+                    }
+                    slots[j] = slot;
+                }
+                if (placed) {
+                    break;
+                }
+                displacement++;
+            }
+            displacements[bucketIndex] = displacement;
+            for (int j = 0; j < bucket.size(); j++) {
+                int key = bucket.get(j);
+                used[slots[j]] = true;
+                slotKeys[slots[j]] = keys[key];
+                slotValues[slots[j]] = values[key];
+            }
+        }
+    }
+
+    static int bucket(long hash, int bucketCount) {
+        return (int) ((hash >>> 32) % bucketCount);
+    }
+
+    static int slot(long hash, int displacement, int size) {
+        return (int) ((mix(hash + displacement * 0x9e3779b97f4a7c15L) >>> 1) % size);
+    }
+
+    static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class JarDescriptor {
+
+        private String  name;
+        private boolean fatJar;
+        private long    offset;
+        private long    size;
+        private long    crc;
+
+        public JarDescriptor(String name, boolean fatJar, long offset, long size, long crc) {
+            this.name = name;
+            this.fatJar = fatJar;
+            this.offset = offset;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+}
@@ -16,6 +16,8 @@
 package org.hellojavaer.fatjar.maven.plugin;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.model.Dependency;
 import org.apache.maven.plugin.AbstractMojo;
@@ -28,7 +30,10 @@ import org.apache.maven.plugins.annotations.ResolutionScope;
 import java.io.*;
 import java.util.*;
 import java.util.jar.*;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 /**
  *
@@ -43,6 +48,10 @@ public class FatJarMojo extends AbstractMojo {
     private static final String    START_CLASS_KEY              = "Start-Class";
     private static final String    MAIN_CLASS_KEY               = "Main-Class";
 
+    private static final int       PAGE_SIZE                    = 4096;
+    // header id of the padding extra field, the same as zipalign uses
+    private static final int       ALIGNMENT_EXTRA_ID           = 0xd935;
+
     @Parameter(defaultValue = "${project.artifacts}", required = true, readonly = true)
     private Collection<Artifact>   artifacts;
 
@@ -67,6 +76,12 @@ public class FatJarMojo extends AbstractMojo {
     @Parameter(defaultValue = "lib/", property = "libDirectory", required = false)
     private String                 libDirectory;
 
+    /**
+     * store nested jars without compression and align their data to pages, so they can be read in place at runtime
+     */
+    @Parameter(defaultValue = "false", property = "storeNestedJars", required = false)
+    private boolean                storeNestedJars;
+
     public void execute() throws MojoExecutionException {
         if (startClass != null) {
             startClass = startClass.trim();
@@ -146,35 +161,108 @@ public class FatJarMojo extends AbstractMojo {
 
             // 1.create output file
             jarFile = new File(targetDirectory, fileName);
-            out = new JarOutputStream(new FileOutputStream(jarFile, false), manifest);
+            OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(jarFile, false));
+            CountingOutputStream countingOut = new CountingOutputStream(fileOut);
+            out = new JarOutputStream(countingOut, manifest);
+            FatJarIndexBuilder indexBuilder = new FatJarIndexBuilder();
+            indexBuilder.addEntry(JarFile.MANIFEST_NAME, 0);
 
             // 2.import direct dependency
             ZipEntry zipEntry;
             while ((zipEntry = directDependencyJarInputStream.getNextEntry()) != null) {
+                if (FatJarIndexBuilder.INDEX_ENTRY_NAME.equals(zipEntry.getName())) {
+                    continue;
+                }
+                // the class loader takes every jar in the fat jar for a nested jar, so the index must list them all
+                if (!zipEntry.isDirectory() && zipEntry.getName().endsWith(".jar")) {
+                    byte[] nestedJar = IOUtils.toByteArray(directDependencyJarInputStream);
+                    long offset = countingOut.getByteCount();
+                    out.putNextEntry(zipEntry);
+                    out.write(nestedJar);
+                    out.closeEntry();
+                    indexBuilder.addEntry(zipEntry.getName(), 0);
+                    addNestedJar(indexBuilder, zipEntry.getName(), nestedJar, offset);
+                    continue;
+                }
                 out.putNextEntry(zipEntry);
                 IOUtils.copy(directDependencyJarInputStream, out);
                 out.closeEntry();
+                indexBuilder.addEntry(zipEntry.getName(), 0);
             }
 
             // 3.import indirect dependency
             for (Map.Entry<Artifact, String> entry : artifactMap.entrySet()) {
-                ZipEntry zipEntry0 = new ZipEntry(libDirectory + entry.getValue());
+                String nestedJarName = libDirectory + entry.getValue();
+                ZipEntry zipEntry0 = new ZipEntry(nestedJarName);
                 File file = entry.getKey().getFile();
                 long lastModified = -1;
+                boolean isFatJar = false;
+                List<String> nestedEntryNames = new ArrayList<String>();
+                JarFile temp = null;
                 try {
-                    JarFile temp = new JarFile(file);
+                    temp = new JarFile(file);
                     JarEntry jarEntry = temp.getJarEntry("META-INF/MANIFEST.MF");
                     if (jarEntry != null) {
                         lastModified = jarEntry.getTime();
                     }
+                    Manifest nestedManifest = temp.getManifest();
+                    isFatJar = nestedManifest != null
+                               && nestedManifest.getMainAttributes().getValue(FAT_JAR_BUILDING_TOOL_ID_KEY) != null;
+                    Enumeration<JarEntry> nestedEntries = temp.entries();
+                    while (nestedEntries.hasMoreElements()) {
+                        nestedEntryNames.add(nestedEntries.nextElement().getName());
+                    }
                 } catch (Throwable e) {
                     getLog().warn(entry.getValue() + " isn't a jar");
+                } finally {
+                    if (temp != null) {
+                        try {
+                            temp.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
                 }
                 zipEntry0.setTime(lastModified);// mark down the lastModified
+                long crc = crc(file);
+                long offset = countingOut.getByteCount();
+                if (storeNestedJars) {
+                    zipEntry0.setMethod(ZipEntry.STORED);
+                    zipEntry0.setSize(file.length());
+                    zipEntry0.setCompressedSize(file.length());
+                    zipEntry0.setCrc(crc);
+                    byte[] padding = alignmentPadding(zipEntry0, offset);
+                    if (padding != null) {
+                        zipEntry0.setExtra(padding);
+                    }
+                }
                 out.putNextEntry(zipEntry0);
-                IOUtils.copy(new FileInputStream(file), out);
+                if (storeNestedJars && countingOut.getByteCount() % PAGE_SIZE != 0) {
+                    getLog().warn(nestedJarName + " isn't page aligned");
+                }
+                InputStream fileInputStream = new FileInputStream(file);
+                try {
+                    IOUtils.copy(fileInputStream, out);
+                } finally {
+                    IOUtils.closeQuietly(fileInputStream);
+                }
                 out.closeEntry();
+
+                indexBuilder.addEntry(nestedJarName, 0);
+                int ordinal = indexBuilder.addJar(nestedJarName, isFatJar, offset, file.length(), crc);
+                // a nested fat jar is served by its own class loader with its own index
+                if (!isFatJar) {
+                    for (String nestedEntryName : nestedEntryNames) {
+                        indexBuilder.addEntry(nestedEntryName, ordinal);
+                    }
+                }
             }
+
+            // 4.write entry index
+            indexBuilder.addEntry(FatJarIndexBuilder.INDEX_ENTRY_NAME, 0);
+            out.putNextEntry(new ZipEntry(FatJarIndexBuilder.INDEX_ENTRY_NAME));
+            indexBuilder.write(out);
+            out.closeEntry();
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         } finally {
@@ -182,4 +270,85 @@ public class FatJarMojo extends AbstractMojo {
             IOUtils.closeQuietly(directDependencyJarInputStream);
         }
     }
+
+    /**
+     * @return an extra field which pads the data of a stored entry written at <code>offset</code> to the next page, or
+     * null if it's aligned already
+     */
+    private static byte[] alignmentPadding(ZipEntry zipEntry, long offset) throws IOException {
+        // measure the local header by writing it to nowhere
+        ZipEntry temp = new ZipEntry(zipEntry);
+        temp.setSize(0);
+        temp.setCompressedSize(0);
+        temp.setCrc(0);
+        CountingOutputStream counter = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        ZipOutputStream zipOut = new ZipOutputStream(counter);
+        zipOut.putNextEntry(temp);
+        long headerLength = counter.getByteCount();
+        zipOut.closeEntry();
+        zipOut.close();
+
+        int padding = (int) ((PAGE_SIZE - (offset + headerLength) % PAGE_SIZE) % PAGE_SIZE);
+        if (padding == 0) {
+            return null;
+        }
+        // an extra field takes at least 4 bytes for its id and size
+        if (padding < 4) {
+            padding += PAGE_SIZE;
+        }
+        byte[] extra = new byte[padding];
+        extra[0] = (byte) ALIGNMENT_EXTRA_ID;
+        extra[1] = (byte) (ALIGNMENT_EXTRA_ID >>> 8);
+        extra[2] = (byte) (padding - 4);
+        extra[3] = (byte) ((padding - 4) >>> 8);
+        return extra;
+    }
+
+    /**
+     * Indexes a jar which the direct dependency contains, as the ones of the indirect dependencies are.
+     */
+    private void addNestedJar(FatJarIndexBuilder indexBuilder, String nestedJarName, byte[] nestedJar, long offset) {
+        boolean isFatJar = false;
+        List<String> nestedEntryNames = new ArrayList<String>();
+        // unlike a JarInputStream, it lists the manifest and its directory too
+        ZipInputStream in = null;
+        try {
+            in = new ZipInputStream(new ByteArrayInputStream(nestedJar));
+            ZipEntry nestedEntry;
+            while ((nestedEntry = in.getNextEntry()) != null) {
+                nestedEntryNames.add(nestedEntry.getName());
+                if (JarFile.MANIFEST_NAME.equalsIgnoreCase(nestedEntry.getName())) {
+                    Manifest nestedManifest = new Manifest(in);
+                    isFatJar = nestedManifest.getMainAttributes().getValue(FAT_JAR_BUILDING_TOOL_ID_KEY) != null;
+                }
+            }
+        } catch (Throwable e) {
+            getLog().warn(nestedJarName + " isn't a jar");
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(nestedJar);
+        int ordinal = indexBuilder.addJar(nestedJarName, isFatJar, offset, nestedJar.length, crc32.getValue());
+        if (!isFatJar) {
+            for (String nestedEntryName : nestedEntryNames) {
+                indexBuilder.addEntry(nestedEntryName, ordinal);
+            }
+        }
+    }
+
+    private static long crc(File file) throws IOException {
+        CRC32 crc32 = new CRC32();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) != -1) {
+                crc32.update(buffer, 0, n);
+            }
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+        return crc32.getValue();
+    }
 }